@@ -0,0 +1,96 @@
+package edu.iu.uits.mail;
+
+/*-
+ * #%L
+ * JavaMail S/MIME Transport
+ * %%
+ * Copyright (C) 2018 Indiana University - UITS
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Indiana University - UITS nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.operator.ContentSigner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Stands in for a {@link ContentSigner} while BouncyCastle assembles the SignerInfos, which it signs one after
+ * another.  It records the signed attributes and returns a unique placeholder, so the real signatures can be
+ * computed in parallel with {@link #sign()} and swapped in afterwards.
+ */
+class DeferredContentSigner implements ContentSigner {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ContentSigner contentSigner;
+    private final ByteArrayOutputStream signedAttributes = new ByteArrayOutputStream();
+    private final byte[] placeholder = new byte[16];
+    private byte[] signature;
+
+    DeferredContentSigner(ContentSigner contentSigner) {
+        this.contentSigner = contentSigner;
+        RANDOM.nextBytes(placeholder);
+    }
+
+    @Override
+    public AlgorithmIdentifier getAlgorithmIdentifier() {
+        return contentSigner.getAlgorithmIdentifier();
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return signedAttributes;
+    }
+
+    @Override
+    public byte[] getSignature() {
+        return placeholder.clone();
+    }
+
+    void sign() {
+        try {
+            contentSigner.getOutputStream().write(signedAttributes.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        signature = contentSigner.getSignature();
+    }
+
+    boolean isPlaceholder(byte[] candidate) {
+        return Arrays.equals(placeholder, candidate);
+    }
+
+    byte[] getDeferredSignature() {
+        return signature;
+    }
+}
@@ -0,0 +1,144 @@
+package edu.iu.uits.mail;
+
+/*-
+ * #%L
+ * JavaMail S/MIME Transport
+ * %%
+ * Copyright (C) 2018 Indiana University - UITS
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Indiana University - UITS nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/**
+ * Java Flight Recorder events timing each phase of signing and sending a message.  They are only recorded when
+ * enabled in a recording, e.g. with {@code -XX:StartFlightRecording}, and cost next to nothing otherwise.
+ */
+@Category({"JavaMail", "S/MIME"})
+@StackTrace(false)
+public abstract class MailPhaseEvent extends Event {
+
+    public static final String SUCCESS = "success";
+    public static final String FAILURE = "failure";
+    public static final String NOT_FOUND = "not found";
+
+    @Label("Message Size")
+    @Description("Size of the message content in bytes, or -1 if it is not known")
+    @DataAmount
+    long messageSize = -1;
+
+    @Label("Alias")
+    @Description("Keystore alias used to sign the message, or the sender for delivery events")
+    String alias;
+
+    @Label("Outcome")
+    String outcome;
+
+    static String getSender(Message message) {
+        try {
+            Address[] from = message.getFrom();
+            return from != null && from.length > 0 ? from[0].toString() : null;
+        } catch (MessagingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Ends the event without recording it yet, for signing phases whose size is only known once the signed
+     * content has been written.  Record it afterwards with {@link #record(long)}.
+     */
+    void end(String alias, String outcome) {
+        end();
+        this.alias = alias;
+        this.outcome = outcome;
+    }
+
+    /**
+     * Records an event ended with {@link #end(String, String)}, if it is enabled and over its threshold.
+     */
+    void record(long messageSize) {
+        if (shouldCommit()) {
+            this.messageSize = messageSize;
+            commit();
+        }
+    }
+
+    /**
+     * Ends the event and records it with a size already known to the caller.
+     */
+    void complete(long messageSize, String alias, String outcome) {
+        end(alias, outcome);
+        record(messageSize);
+    }
+
+    @Name("edu.iu.uits.mail.AliasResolution")
+    @Label("S/MIME Alias Resolution")
+    @Description("Finding a keystore alias matching one of the message's from addresses")
+    public static class AliasResolution extends MailPhaseEvent {
+    }
+
+    @Name("edu.iu.uits.mail.KeyUnlock")
+    @Label("S/MIME Key Unlock")
+    @Description("Loading the signing key and certificate chain from the keystore")
+    public static class KeyUnlock extends MailPhaseEvent {
+    }
+
+    @Name("edu.iu.uits.mail.ContentMaterialization")
+    @Label("S/MIME Content Materialization")
+    @Description("Reading the message content into the body part to be signed")
+    public static class ContentMaterialization extends MailPhaseEvent {
+    }
+
+    @Name("edu.iu.uits.mail.SignatureGeneration")
+    @Label("S/MIME Signature Generation")
+    @Description("Digesting the content and generating the CMS signature")
+    public static class SignatureGeneration extends MailPhaseEvent {
+    }
+
+    @Name("edu.iu.uits.mail.HeaderCopy")
+    @Label("S/MIME Header Copy")
+    @Description("Copying the original headers to the signed message and saving its changes")
+    public static class HeaderCopy extends MailPhaseEvent {
+    }
+
+    @Name("edu.iu.uits.mail.SmtpDelivery")
+    @Label("S/MIME SMTP Delivery")
+    @Description("Delivering the message to the relay")
+    public static class SmtpDelivery extends MailPhaseEvent {
+    }
+}
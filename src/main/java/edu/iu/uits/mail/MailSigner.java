@@ -34,39 +34,68 @@ package edu.iu.uits.mail;
  */
 
 import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSet;
 import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.asn1.cms.ContentInfo;
 import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.SignerInfo;
 import org.bouncycastle.asn1.smime.SMIMECapabilitiesAttribute;
 import org.bouncycastle.asn1.smime.SMIMECapability;
 import org.bouncycastle.asn1.smime.SMIMECapabilityVector;
 import org.bouncycastle.asn1.smime.SMIMEEncryptionKeyPreferenceAttribute;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.cert.jcajce.JcaCertStore;
-import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.cms.DefaultSignedAttributeTableGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.mail.smime.SMIMEException;
 import org.bouncycastle.mail.smime.SMIMESignedGenerator;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DigestCalculatorProvider;
 import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.util.Store;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 
+import javax.activation.DataHandler;
 import javax.mail.Address;
+import javax.mail.BodyPart;
+import javax.mail.Header;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.security.*;
+import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.*;
+import java.util.stream.Collectors;
 
 @Slf4j
 public class MailSigner {
 
     public static final String CERT_PASSWORD_PROPERTY_TEMPLATE = "mail.keystore.%s.password";
+    public static final String SIGNING_ALIASES_PROPERTY_TEMPLATE = "mail.keystore.%s.aliases";
+    public static final String DIGEST_ALGORITHM_PROPERTY = "mail.keystore.digest";
+
+    // RSA keeps the SHA-1 digest it has always been signed with, other key types get SHA-256
+    private static final String RSA_DIGEST_ALGORITHM = "SHA1";
+    private static final String DEFAULT_DIGEST_ALGORITHM = "SHA256";
+    private static final BouncyCastleProvider BOUNCY_CASTLE_PROVIDER = new BouncyCastleProvider();
 
     private static final String LOCAL_ADDRESS_REGEX = "^(.*)@.*$";
 
@@ -102,22 +131,40 @@ public class MailSigner {
             log.warn("No keystore provided so the message will not be signed");
             return Optional.empty();
         }
+        // the signing phases are recorded together once the size of the signed content is known
+        List<MailPhaseEvent> phaseEvents = new ArrayList<>();
         try {
             Address[] from = mimeMessage.getFrom();
 
+            MailPhaseEvent aliasEvent = new MailPhaseEvent.AliasResolution();
+            aliasEvent.begin();
+            List<String> aliases = Arrays.stream(from).map(Address::toString).map(this::getSigningAliases)
+                    .filter(signingAliases -> !signingAliases.isEmpty()).findFirst().orElse(Collections.emptyList());
+            String alias = aliases.isEmpty() ? null : String.join(",", aliases);
+            aliasEvent.end(alias, aliases.isEmpty() ? MailPhaseEvent.NOT_FOUND : MailPhaseEvent.SUCCESS);
+            phaseEvents.add(aliasEvent);
 
-            Optional<String> signingAddress = Arrays.stream(from).map(Address::toString).filter(address -> {
+            if(!aliases.isEmpty()) {
+                List<KeyStore.PrivateKeyEntry> signers = new ArrayList<>();
+                MailPhaseEvent keyEvent = new MailPhaseEvent.KeyUnlock();
+                keyEvent.begin();
+                String keyOutcome = MailPhaseEvent.FAILURE;
                 try {
-                    return keyStore.containsAlias(address);
-                } catch (KeyStoreException e) {
-                    return false;
+                    for (String signingAlias : aliases) {
+                        String emailKeyPassword = getEmailPassword(signingAlias);
+                        PrivateKey privateKey = (PrivateKey) keyStore.getKey(signingAlias, emailKeyPassword.toCharArray());
+                        Certificate certificate = keyStore.getCertificateChain(signingAlias)[0];
+                        if (!(certificate instanceof X509Certificate)) {
+                            throw new KeyStoreException("The certificate for " + signingAlias + " is not an X.509 certificate");
+                        }
+                        signers.add(new KeyStore.PrivateKeyEntry(privateKey, new Certificate[]{certificate}));
+                    }
+                    keyOutcome = MailPhaseEvent.SUCCESS;
+                } finally {
+                    keyEvent.end(alias, keyOutcome);
+                    phaseEvents.add(keyEvent);
                 }
-            }).findFirst();
-
-            if(signingAddress.isPresent()) {
-                String alias = signingAddress.get();
-                String emailKeyPassword = getEmailPassword(alias);
-                return Optional.of(MailSigner.signMessage(mimeMessage, (PrivateKey)keyStore.getKey(alias, emailKeyPassword.toCharArray()), ((X509Certificate) keyStore.getCertificateChain(alias)[0])));
+                return Optional.of(MailSigner.signMessage(mimeMessage, signers, properties.getProperty(DIGEST_ALGORITHM_PROPERTY), alias, phaseEvents));
             } else {
                 log.info("Could not find an email certificate for any of the from addresses: " + from);
                 return Optional.empty();
@@ -125,7 +172,39 @@ public class MailSigner {
         } catch (MessagingException | UnrecoverableKeyException | NoSuchAlgorithmException | KeyStoreException e) {
             log.error("Caught exception when attempting to sign a message.  The message will be sent unsigned.", e);
             return Optional.empty();
+        } finally {
+            recordPhaseEvents(phaseEvents, -1);
+        }
+    }
+
+    /**
+     * Returns the keystore aliases to sign with for a from address.  These are the aliases listed in the
+     * {@code mail.keystore.<address>.aliases} property, or its local part equivalent, and otherwise the address
+     * itself.  Aliases missing from the keystore are skipped.
+     */
+    protected List<String> getSigningAliases(String address) {
+        String configuredAliases = properties.getProperty(String.format(SIGNING_ALIASES_PROPERTY_TEMPLATE, address));
+        if (configuredAliases == null || configuredAliases.trim().isEmpty()) {
+            final String localPart = address.replaceAll(LOCAL_ADDRESS_REGEX, "$1");
+            configuredAliases = properties.getProperty(String.format(SIGNING_ALIASES_PROPERTY_TEMPLATE, localPart));
+        }
+        List<String> candidates = configuredAliases == null || configuredAliases.trim().isEmpty()
+                ? Collections.singletonList(address)
+                : Arrays.stream(configuredAliases.split(",")).map(String::trim).filter(alias -> !alias.isEmpty()).collect(Collectors.toList());
+
+        List<String> aliases = new ArrayList<>();
+        for (String candidate : candidates) {
+            try {
+                if (keyStore.containsAlias(candidate)) {
+                    aliases.add(candidate);
+                } else if (configuredAliases != null) {
+                    log.warn(String.format("Signing alias %s configured for %s is not in the keystore.", candidate, address));
+                }
+            } catch (KeyStoreException e) {
+                log.debug(String.format("Unable to look up signing alias %s.", candidate), e);
+            }
         }
+        return aliases;
     }
 
     protected String getEmailPassword(String alias) {
@@ -145,31 +224,73 @@ public class MailSigner {
     }
 
     public static MimeMessage signMessage(final MimeMessage message, PrivateKey privateKey, X509Certificate certificate)  {
+        return signMessage(message, Collections.singletonList(new KeyStore.PrivateKeyEntry(privateKey, new Certificate[]{certificate})), null, null, new ArrayList<>());
+    }
+
+    /**
+     * Signs the message once with each of the given keys, producing a single {@code multipart/signed} with one
+     * SignerInfo per key.  The content is digested once for each digest algorithm in use and shared by the signers
+     * using it, and when there is more than one signer the signatures themselves are computed in parallel.
+     *
+     * @throws IllegalArgumentException if there are no signers or a signer's certificate is not an X.509 certificate
+     */
+    public static MimeMessage signMessage(final MimeMessage message, List<KeyStore.PrivateKeyEntry> signers)  {
+        if (signers == null || signers.isEmpty()) {
+            throw new IllegalArgumentException("At least one signer is required");
+        }
+        for (KeyStore.PrivateKeyEntry signer : signers) {
+            if (!(signer.getCertificate() instanceof X509Certificate)) {
+                throw new IllegalArgumentException("Signer certificate is not an X.509 certificate: " + signer.getCertificate().getType());
+            }
+        }
+        return signMessage(message, signers, null, null, new ArrayList<>());
+    }
+
+    private static MimeMessage signMessage(final MimeMessage message, List<KeyStore.PrivateKeyEntry> signers, String digestAlgorithm,
+                                           String alias, List<MailPhaseEvent> phaseEvents)  {
+        MailPhaseEvent phaseEvent = null;
         try {
-            Store certs = new JcaCertStore(Collections.singletonList(certificate));
+            SMIMESignedGenerator gen = new SMIMESignedGenerator();
+            DigestCalculatorProvider digestCalculatorProvider = new SharedDigestCalculatorProvider(
+                    new JcaDigestCalculatorProviderBuilder().setProvider(BOUNCY_CASTLE_PROVIDER).build());
+            List<X509Certificate> certificates = new ArrayList<>();
+            List<DeferredContentSigner> deferredSigners = new ArrayList<>();
 
-            ASN1EncodableVector signedAttributes = new ASN1EncodableVector();
-            SMIMECapabilityVector caps = new SMIMECapabilityVector();
-            caps.addCapability(SMIMECapability.dES_EDE3_CBC);
-            caps.addCapability(SMIMECapability.rC2_CBC, 128);
-            caps.addCapability(SMIMECapability.dES_CBC);
-            caps.addCapability(SMIMECapability.aES256_CBC);
-            signedAttributes.add(new SMIMECapabilitiesAttribute(caps));
+            for (KeyStore.PrivateKeyEntry signer : signers) {
+                X509Certificate certificate = (X509Certificate) signer.getCertificate();
+                certificates.add(certificate);
 
-            IssuerAndSerialNumber issuerAndSerialNumber = new IssuerAndSerialNumber(
-                    new X500Name(certificate.getIssuerDN().getName()), certificate.getSerialNumber());
-            signedAttributes.add(new SMIMEEncryptionKeyPreferenceAttribute(issuerAndSerialNumber));
+                ASN1EncodableVector signedAttributes = new ASN1EncodableVector();
+                SMIMECapabilityVector caps = new SMIMECapabilityVector();
+                caps.addCapability(SMIMECapability.dES_EDE3_CBC);
+                caps.addCapability(SMIMECapability.rC2_CBC, 128);
+                caps.addCapability(SMIMECapability.dES_CBC);
+                caps.addCapability(SMIMECapability.aES256_CBC);
+                signedAttributes.add(new SMIMECapabilitiesAttribute(caps));
 
-            SMIMESignedGenerator gen = new SMIMESignedGenerator();
+                IssuerAndSerialNumber issuerAndSerialNumber = new IssuerAndSerialNumber(
+                        new X500Name(certificate.getIssuerDN().getName()), certificate.getSerialNumber());
+                signedAttributes.add(new SMIMEEncryptionKeyPreferenceAttribute(issuerAndSerialNumber));
 
-            gen.addSignerInfoGenerator(
-                    new JcaSimpleSignerInfoGeneratorBuilder().setProvider(new BouncyCastleProvider())
-                            .setSignedAttributeGenerator(new AttributeTable(signedAttributes))
-                            .build("SHA1withRSA", privateKey, certificate));
+                ContentSigner contentSigner = new JcaContentSignerBuilder(getSignatureAlgorithm(signer.getPrivateKey(), digestAlgorithm))
+                        .setProvider(BOUNCY_CASTLE_PROVIDER).build(signer.getPrivateKey());
+                if (signers.size() > 1) {
+                    DeferredContentSigner deferredSigner = new DeferredContentSigner(contentSigner);
+                    deferredSigners.add(deferredSigner);
+                    contentSigner = deferredSigner;
+                }
+
+                gen.addSignerInfoGenerator(
+                        new JcaSignerInfoGeneratorBuilder(digestCalculatorProvider)
+                                .setSignedAttributeGenerator(new DefaultSignedAttributeTableGenerator(new AttributeTable(signedAttributes)))
+                                .build(contentSigner, certificate));
+            }
 
-            gen.addCertificates(certs);
+            gen.addCertificates(new JcaCertStore(certificates));
 
             // the message could be just a plain text message, or it could be a multipart message, let's handle both!
+            phaseEvent = new MailPhaseEvent.ContentMaterialization();
+            phaseEvent.begin();
             MimeBodyPart mimeBodyPart = new MimeBodyPart();
             Object messageContent = message.getContent();
             if (messageContent instanceof String) {
@@ -177,9 +298,34 @@ public class MailSigner {
             } else if (messageContent instanceof MimeMultipart) {
                 mimeBodyPart.setContent((MimeMultipart)messageContent);
             }
+            phaseEvent.end(alias, MailPhaseEvent.SUCCESS);
+            phaseEvents.add(phaseEvent);
 
-            MimeMultipart signedMultipart = gen.generate(mimeBodyPart);
+            phaseEvent = new MailPhaseEvent.SignatureGeneration();
+            phaseEvent.begin();
+            // BouncyCastle only computes the signature when the multipart is written, so write it once here rather
+            // than re-signing every time the message is written out
+            MimeMultipart generatedMultipart = gen.generate(mimeBodyPart);
+            ByteArrayOutputStream signedContent = new ByteArrayOutputStream();
+            generatedMultipart.writeTo(signedContent);
+            MimeMultipart signedMultipart = new MimeMultipart(
+                    new ByteArrayDataSource(signedContent.toByteArray(), generatedMultipart.getContentType()));
+            if (!deferredSigners.isEmpty()) {
+                deferredSigners.parallelStream().forEach(DeferredContentSigner::sign);
+                replaceDeferredSignatures(signedMultipart, deferredSigners);
+            }
+            // the real signatures are a different length than the placeholders, so measure what will actually be sent
+            long signedSize = signedContent.size();
+            if (!deferredSigners.isEmpty()) {
+                CountingOutputStream countingOutput = new CountingOutputStream(OutputStream.nullOutputStream());
+                signedMultipart.writeTo(countingOutput);
+                signedSize = countingOutput.getCount();
+            }
+            phaseEvent.end(alias, MailPhaseEvent.SUCCESS);
+            phaseEvents.add(phaseEvent);
 
+            phaseEvent = new MailPhaseEvent.HeaderCopy();
+            phaseEvent.begin();
             MimeMessage signedMessage = new MimeMessage(message.getSession());
             signedMessage.setContent(signedMultipart, signedMultipart.getContentType());
 
@@ -193,15 +339,79 @@ public class MailSigner {
                 }
             }
             signedMessage.saveChanges();
+            phaseEvent.end(alias, MailPhaseEvent.SUCCESS);
+            phaseEvents.add(phaseEvent);
+            phaseEvent = null;
+            recordPhaseEvents(phaseEvents, signedSize);
 
             return signedMessage;
         } catch (CertificateEncodingException |
                 OperatorCreationException |
                 IOException |
                 MessagingException |
-                SMIMEException e) {
+                SMIMEException |
+                UncheckedIOException e) {
+            if (phaseEvent != null) {
+                phaseEvent.end(alias, MailPhaseEvent.FAILURE);
+                phaseEvents.add(phaseEvent);
+            }
+            recordPhaseEvents(phaseEvents, -1);
             log.error("Caught exception when attempting to sign a message. Message will be sent unsigned", e);
             return message;
         }
     }
+
+    private static void recordPhaseEvents(List<MailPhaseEvent> phaseEvents, long messageSize) {
+        phaseEvents.forEach(phaseEvent -> phaseEvent.record(messageSize));
+        phaseEvents.clear();
+    }
+
+    /**
+     * Uses the configured digest for every key type, so that all signers of a message share one digest of the
+     * content, or otherwise the default digest for the key type.
+     */
+    private static String getSignatureAlgorithm(PrivateKey privateKey, String digestAlgorithm) {
+        String keyAlgorithm = privateKey.getAlgorithm();
+        String digest = digestAlgorithm != null && !digestAlgorithm.trim().isEmpty()
+                ? digestAlgorithm.trim().replace("-", "").toUpperCase(Locale.ENGLISH)
+                : "RSA".equals(keyAlgorithm) ? RSA_DIGEST_ALGORITHM : DEFAULT_DIGEST_ALGORITHM;
+        return digest + "with" + ("EC".equals(keyAlgorithm) ? "ECDSA" : keyAlgorithm);
+    }
+
+    /**
+     * Swaps the placeholder signatures left by {@link DeferredContentSigner}s for the real ones in the
+     * signature part of a generated {@code multipart/signed}.
+     */
+    private static void replaceDeferredSignatures(MimeMultipart signedMultipart, List<DeferredContentSigner> deferredSigners) throws MessagingException, IOException {
+        BodyPart signaturePart = signedMultipart.getBodyPart(1);
+        ContentInfo contentInfo;
+        try (ASN1InputStream in = new ASN1InputStream(signaturePart.getInputStream())) {
+            contentInfo = ContentInfo.getInstance(in.readObject());
+        }
+        SignedData signedData = SignedData.getInstance(contentInfo.getContent());
+
+        ASN1EncodableVector signerInfos = new ASN1EncodableVector();
+        for (ASN1Encodable encodable : signedData.getSignerInfos()) {
+            SignerInfo signerInfo = SignerInfo.getInstance(encodable);
+            byte[] placeholder = signerInfo.getEncryptedDigest().getOctets();
+            DeferredContentSigner deferredSigner = deferredSigners.stream().filter(signer -> signer.isPlaceholder(placeholder))
+                    .findFirst().orElseThrow(() -> new IllegalStateException("No deferred signature for SignerInfo " + signerInfo.getSID()));
+            signerInfos.add(new SignerInfo(signerInfo.getSID(), signerInfo.getDigestAlgorithm(), signerInfo.getAuthenticatedAttributes(),
+                    signerInfo.getDigestEncryptionAlgorithm(), new DEROctetString(deferredSigner.getDeferredSignature()),
+                    signerInfo.getUnauthenticatedAttributes()));
+        }
+        SignedData resignedData = new SignedData(signedData.getDigestAlgorithms(), signedData.getEncapContentInfo(),
+                signedData.getCertificates(), signedData.getCRLs(), new DERSet(signerInfos));
+
+        MimeBodyPart resignedPart = new MimeBodyPart();
+        resignedPart.setDataHandler(new DataHandler(new ByteArrayDataSource(
+                new ContentInfo(CMSObjectIdentifiers.signedData, resignedData).getEncoded(ASN1Encoding.DER), signaturePart.getContentType())));
+        Enumeration signatureHeaders = signaturePart.getAllHeaders();
+        while (signatureHeaders.hasMoreElements()) {
+            Header header = (Header) signatureHeaders.nextElement();
+            resignedPart.setHeader(header.getName(), header.getValue());
+        }
+        signedMultipart.removeBodyPart(1);
+        signedMultipart.addBodyPart(resignedPart);
+    }
 }
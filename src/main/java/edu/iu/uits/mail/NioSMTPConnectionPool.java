@@ -0,0 +1,125 @@
+package edu.iu.uits.mail;
+
+/*-
+ * #%L
+ * JavaMail S/MIME Transport
+ * %%
+ * Copyright (C) 2018 Indiana University - UITS
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Indiana University - UITS nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The connections a {@link NioSMTPEngine} holds open to one relay.  At most {@link NioSMTPEndpoint#getMaxConnections()}
+ * are open at once; a message submitted while they are all busy waits here until one of them finishes its current
+ * message, and a connection with nothing left to send is kept for the next message instead of being closed.
+ */
+class NioSMTPConnectionPool {
+
+    private final NioSMTPEngine engine;
+    private final int maxConnections;
+    private final Deque<NioSMTPConversation> idle = new ArrayDeque<>();
+    private final Deque<NioSMTPMessage> queued = new ArrayDeque<>();
+    private NioSMTPEndpoint endpoint;
+    private int connections;
+    private boolean dispatching;
+
+    NioSMTPConnectionPool(NioSMTPEngine engine, int maxConnections) {
+        this.engine = engine;
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    synchronized void submit(NioSMTPEndpoint endpoint, NioSMTPMessage message) {
+        // every endpoint sharing a pool has the same settings, but the latest one has the freshest address
+        this.endpoint = endpoint;
+        queued.add(message);
+        dispatch();
+    }
+
+    /**
+     * Puts back a message whose connection was lost before anything was sent for it, so it is delivered
+     * over another connection rather than failed.
+     */
+    synchronized void retry(NioSMTPMessage message) {
+        queued.addFirst(message);
+        dispatch();
+    }
+
+    /**
+     * Called by a connection which has finished its message.
+     *
+     * @return the next message for it to send, or null if it has been parked as idle
+     */
+    synchronized NioSMTPMessage onIdle(NioSMTPConversation conversation) {
+        NioSMTPMessage message = queued.poll();
+        if (message == null) {
+            idle.push(conversation);
+        }
+        return message;
+    }
+
+    /**
+     * Takes an idle connection out of the pool so it can be closed.
+     *
+     * @return false if the connection has already been handed another message
+     */
+    synchronized boolean removeIdle(NioSMTPConversation conversation) {
+        return idle.remove(conversation);
+    }
+
+    synchronized void onClosed(NioSMTPConversation conversation) {
+        idle.remove(conversation);
+        connections--;
+        dispatch();
+    }
+
+    private void dispatch() {
+        // a connection failing to open calls back into onClosed, so let the outermost call do the work
+        if (dispatching) {
+            return;
+        }
+        dispatching = true;
+        try {
+            while (!queued.isEmpty()) {
+                NioSMTPConversation conversation = idle.poll();
+                if (conversation != null) {
+                    conversation.deliver(queued.poll());
+                } else if (connections < maxConnections) {
+                    connections++;
+                    engine.open(new NioSMTPConversation(endpoint, this, queued.poll()));
+                } else {
+                    return;
+                }
+            }
+        } finally {
+            dispatching = false;
+        }
+    }
+}
@@ -0,0 +1,746 @@
+package edu.iu.uits.mail;
+
+/*-
+ * #%L
+ * JavaMail S/MIME Transport
+ * %%
+ * Copyright (C) 2018 Indiana University - UITS
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Indiana University - UITS nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.internet.InternetAddress;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * One connection to a relay driven by a {@link NioSMTPEngine} selector thread, delivering the messages its
+ * {@link NioSMTPConnectionPool} hands it one after another.  Every method other than the constructor and
+ * {@link #deliver(NioSMTPMessage)} is called on the owning selector thread, so no state in here is synchronized.
+ */
+@Slf4j
+class NioSMTPConversation {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final long IDLE_TIMEOUT_MILLIS = 30_000;
+
+    private enum State {
+        CONNECTING, GREETING, EHLO, HELO, STARTTLS, HANDSHAKE, AUTH, AUTH_LOGIN_USER, AUTH_LOGIN_PASSWORD,
+        RSET, MAIL_FROM, RCPT_TO, DATA, DATA_END, IDLE, QUIT
+    }
+
+    private final NioSMTPEndpoint endpoint;
+    private final NioSMTPConnectionPool pool;
+    private final InetSocketAddress address;
+
+    private final List<String> responseLines = new ArrayList<>();
+    private final Set<String> extensions = new HashSet<>();
+    private final Set<String> authMechanisms = new HashSet<>();
+
+    private NioSMTPMessage message;
+    private final List<Address> validRecipients = new ArrayList<>();
+    private final List<Address> invalidRecipients = new ArrayList<>();
+    private MessagingException recipientFailure;
+    private int recipientIndex;
+
+    private volatile Executor selectorLoop;
+    private SocketChannel channel;
+    private SelectionKey key;
+    private SSLEngine sslEngine;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer pendingOut = EMPTY;
+
+    private State state = State.CONNECTING;
+    private String lastCommand;
+    private boolean handshaking;
+    private boolean done;
+    private long lastActivity;
+
+    NioSMTPConversation(NioSMTPEndpoint endpoint, NioSMTPConnectionPool pool, NioSMTPMessage message) {
+        this.endpoint = endpoint;
+        this.pool = pool;
+        this.address = endpoint.getAddress();
+        this.message = message;
+    }
+
+    void start(Executor selectorLoop, Selector selector) throws IOException {
+        this.selectorLoop = selectorLoop;
+        lastActivity = System.currentTimeMillis();
+        channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+        if (channel.connect(address)) {
+            onConnected();
+        }
+    }
+
+    /**
+     * Sends another message over this idle connection, starting with a RSET so nothing is left over from the
+     * previous transaction.  If the connection has gone away in the meantime the message goes back to the pool.
+     */
+    void deliver(NioSMTPMessage nextMessage) {
+        selectorLoop.execute(() -> {
+            if (done) {
+                pool.retry(nextMessage);
+                return;
+            }
+            startMessage(nextMessage);
+            try {
+                state = State.RSET;
+                send("RSET");
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+    }
+
+    private void startMessage(NioSMTPMessage nextMessage) {
+        message = nextMessage;
+        validRecipients.clear();
+        invalidRecipients.clear();
+        recipientFailure = null;
+        recipientIndex = 0;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    void handle(SelectionKey selectedKey) throws IOException {
+        lastActivity = System.currentTimeMillis();
+        if (selectedKey.isConnectable()) {
+            if (channel.finishConnect()) {
+                onConnected();
+            }
+            return;
+        }
+        if (selectedKey.isValid() && selectedKey.isWritable()) {
+            onWritable();
+        }
+        if (selectedKey.isValid() && selectedKey.isReadable()) {
+            onReadable();
+        }
+    }
+
+    void checkTimeout(long now) {
+        if (done) {
+            return;
+        }
+        if (state == State.IDLE) {
+            if (now - lastActivity > IDLE_TIMEOUT_MILLIS && pool.removeIdle(this)) {
+                try {
+                    state = State.QUIT;
+                    send("QUIT");
+                } catch (IOException e) {
+                    close();
+                }
+            }
+            return;
+        }
+        long limit = state == State.CONNECTING ? endpoint.getConnectionTimeout() : endpoint.getTimeout();
+        if (limit > 0 && now - lastActivity > limit) {
+            fail(new SocketTimeoutException("Timed out waiting for " + endpoint.getHost() + ":" + endpoint.getPort()
+                    + (lastCommand != null ? " to respond to " + lastCommand : "")));
+        }
+    }
+
+    private void onConnected() throws IOException {
+        log.debug("Connected to {}:{}", endpoint.getHost(), endpoint.getPort());
+        state = State.GREETING;
+        if (endpoint.isSsl()) {
+            startTls();
+        } else {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void startTls() throws IOException {
+        sslEngine = endpoint.createSSLEngine();
+        netIn = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+        netOut = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+        appIn = ByteBuffer.allocate(Math.max(appIn.capacity(), sslEngine.getSession().getApplicationBufferSize()));
+        sslEngine.beginHandshake();
+        handshaking = true;
+        if (handshake()) {
+            onHandshakeFinished();
+        }
+    }
+
+    /**
+     * Advances the TLS handshake as far as possible without blocking.
+     *
+     * @return true once the handshake has completed
+     */
+    private boolean handshake() throws IOException {
+        HandshakeStatus status = sslEngine.getHandshakeStatus();
+        while (true) {
+            switch (status) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    status = sslEngine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    SSLEngineResult wrapResult = sslEngine.wrap(EMPTY, netOut);
+                    if (wrapResult.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0) {
+                        netOut = enlarge(netOut, sslEngine.getSession().getPacketBufferSize());
+                    } else if (wrapResult.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new EOFException("TLS connection closed during handshake");
+                    }
+                    status = wrapResult.getHandshakeStatus();
+                    if (!writeNet()) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                        return false;
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    netIn.flip();
+                    SSLEngineResult unwrapResult = sslEngine.unwrap(netIn, appIn);
+                    netIn.compact();
+                    if (unwrapResult.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        if (!netIn.hasRemaining()) {
+                            netIn = enlarge(netIn, sslEngine.getSession().getPacketBufferSize());
+                        }
+                        key.interestOps(SelectionKey.OP_READ);
+                        return false;
+                    } else if (unwrapResult.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        appIn = enlarge(appIn, sslEngine.getSession().getApplicationBufferSize());
+                    } else if (unwrapResult.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new EOFException("TLS connection closed during handshake");
+                    }
+                    status = unwrapResult.getHandshakeStatus();
+                    break;
+                default:
+                    handshaking = false;
+                    return true;
+            }
+        }
+    }
+
+    private void onHandshakeFinished() throws IOException {
+        log.debug("TLS handshake with {}:{} finished using {}", endpoint.getHost(), endpoint.getPort(),
+                sslEngine.getSession().getProtocol());
+        if (state == State.HANDSHAKE) {
+            // RFC 3207 requires the client to discard what it knew about the server and say EHLO again
+            sendEhlo();
+        } else {
+            flush();
+        }
+        // the relay may already have sent its greeting along with the final handshake records
+        processInput();
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = sslEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void onWritable() throws IOException {
+        if (handshaking) {
+            if (handshake()) {
+                onHandshakeFinished();
+            }
+        } else {
+            flush();
+        }
+    }
+
+    private void onReadable() throws IOException {
+        int read = channel.read(sslEngine != null ? netIn : appIn);
+        if (read < 0) {
+            throw new EOFException("Connection closed by " + endpoint.getHost() + ":" + endpoint.getPort()
+                    + (lastCommand != null ? " after " + lastCommand : ""));
+        }
+        if (handshaking) {
+            if (handshake()) {
+                onHandshakeFinished();
+            }
+            return;
+        }
+        processInput();
+    }
+
+    private void processInput() throws IOException {
+        if (sslEngine != null) {
+            unwrap();
+        }
+        readResponses();
+        if (!appIn.hasRemaining()) {
+            appIn = enlarge(appIn, BUFFER_SIZE);
+        }
+    }
+
+    private void unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult unwrapResult = sslEngine.unwrap(netIn, appIn);
+            netIn.compact();
+            switch (unwrapResult.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = enlarge(netIn, sslEngine.getSession().getPacketBufferSize());
+                    }
+                    return;
+                case BUFFER_OVERFLOW:
+                    appIn = enlarge(appIn, sslEngine.getSession().getApplicationBufferSize());
+                    break;
+                case CLOSED:
+                    throw new EOFException("TLS connection closed by " + endpoint.getHost() + ":" + endpoint.getPort());
+                default:
+                    // post-handshake messages such as TLS 1.3 session tickets and key updates
+                    if (unwrapResult.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                    }
+                    if (sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                        handshaking = true;
+                        if (!handshake()) {
+                            return;
+                        }
+                    }
+                    if (unwrapResult.bytesConsumed() == 0 && unwrapResult.bytesProduced() == 0) {
+                        return;
+                    }
+            }
+        }
+    }
+
+    private void readResponses() throws IOException {
+        // STARTTLS swaps in a new application buffer, so hold on to the one being parsed
+        ByteBuffer buffer = appIn;
+        buffer.flip();
+        try {
+            while (!done && buffer == appIn) {
+                int lineEnd = -1;
+                for (int i = buffer.position(); i < buffer.limit(); i++) {
+                    if (buffer.get(i) == '\n') {
+                        lineEnd = i;
+                        break;
+                    }
+                }
+                if (lineEnd < 0) {
+                    return;
+                }
+                byte[] bytes = new byte[lineEnd - buffer.position() + 1];
+                buffer.get(bytes);
+                String line = new String(bytes, StandardCharsets.US_ASCII).replaceAll("[\r\n]+$", "");
+                responseLines.add(line);
+                if (line.length() < 4 || line.charAt(3) != '-') {
+                    List<String> lines = new ArrayList<>(responseLines);
+                    responseLines.clear();
+                    onResponse(getReturnCode(line), lines);
+                }
+            }
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    private static int getReturnCode(String line) {
+        try {
+            return Integer.parseInt(line.substring(0, 3));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private void onResponse(int code, List<String> lines) throws IOException {
+        String response = String.join("\n", lines);
+        log.trace("S: {}", response);
+        switch (state) {
+            case GREETING:
+                if (code != 220) {
+                    failCommand("connect", code, response);
+                    return;
+                }
+                sendEhlo();
+                break;
+            case EHLO:
+                if (code != 250) {
+                    // like JavaMail, fall back to HELO for relays which don't speak ESMTP
+                    state = State.HELO;
+                    send("HELO " + endpoint.getLocalHost());
+                    return;
+                }
+                readExtensions(lines);
+                onHello(code, response);
+                break;
+            case HELO:
+                if (code != 250) {
+                    failCommand(lastCommand, code, response);
+                    return;
+                }
+                extensions.clear();
+                authMechanisms.clear();
+                onHello(code, response);
+                break;
+            case STARTTLS:
+                if (code != 220) {
+                    failCommand(lastCommand, code, response);
+                    return;
+                }
+                state = State.HANDSHAKE;
+                startTls();
+                break;
+            case AUTH_LOGIN_USER:
+                if (code != 334) {
+                    failCommand(lastCommand, code, response);
+                    return;
+                }
+                state = State.AUTH_LOGIN_PASSWORD;
+                send(base64(endpoint.getUser()), "AUTH LOGIN <user>");
+                break;
+            case AUTH_LOGIN_PASSWORD:
+                if (code != 334) {
+                    failCommand(lastCommand, code, response);
+                    return;
+                }
+                state = State.AUTH;
+                send(base64(endpoint.getPassword()), "AUTH LOGIN <password>");
+                break;
+            case AUTH:
+                if (code != 235) {
+                    failCommand(lastCommand, code, response);
+                    return;
+                }
+                sendMailFrom();
+                break;
+            case RSET:
+                if (code != 250) {
+                    // treated as a lost connection, so the message is retried over a new one
+                    failCommand(lastCommand, code, response);
+                    return;
+                }
+                sendMailFrom();
+                break;
+            case MAIL_FROM:
+                if (code != 250) {
+                    rejectMessage(lastCommand, code, response);
+                    return;
+                }
+                sendNextRecipient();
+                break;
+            case RCPT_TO:
+                InternetAddress recipient = message.getRecipients()[recipientIndex++];
+                if (code == 250 || code == 251) {
+                    validRecipients.add(recipient);
+                } else {
+                    invalidRecipients.add(recipient);
+                    SMTPAddressFailedException failure = new SMTPAddressFailedException(recipient, lastCommand, code, response);
+                    if (recipientFailure == null) {
+                        recipientFailure = failure;
+                    } else {
+                        recipientFailure.setNextException(failure);
+                    }
+                    if (code == 421) {
+                        rejectRecipients(true);
+                        return;
+                    }
+                }
+                if (recipientIndex < message.getRecipients().length) {
+                    sendNextRecipient();
+                } else if (validRecipients.isEmpty() || (!invalidRecipients.isEmpty() && !endpoint.isSendPartial())) {
+                    rejectRecipients(false);
+                } else {
+                    state = State.DATA;
+                    send("DATA");
+                }
+                break;
+            case DATA:
+                if (code != 354) {
+                    rejectMessage(lastCommand, code, response);
+                    return;
+                }
+                state = State.DATA_END;
+                lastCommand = "<message data>";
+                pendingOut = ByteBuffer.wrap(message.getData());
+                flush();
+                break;
+            case DATA_END:
+                if (code != 250) {
+                    rejectMessage(lastCommand, code, response);
+                    return;
+                }
+                finishMessage(invalidRecipients.isEmpty() ? null : new SendFailedException("Invalid Addresses", recipientFailure,
+                        validRecipients.toArray(new Address[0]), null, invalidRecipients.toArray(new Address[0])), false);
+                break;
+            case IDLE:
+                // most likely the relay announcing it is closing an idle connection
+                log.debug("Closing idle connection to {}:{} after {}", endpoint.getHost(), endpoint.getPort(), response);
+                close();
+                break;
+            case QUIT:
+            default:
+                close();
+        }
+    }
+
+    private void onHello(int code, String response) throws IOException {
+        if (sslEngine == null && endpoint.isStartTls() && extensions.contains("STARTTLS")) {
+            state = State.STARTTLS;
+            send("STARTTLS");
+        } else if (sslEngine == null && endpoint.isStartTlsRequired()) {
+            failCommand(lastCommand, code, "STARTTLS is required but not supported by the server");
+        } else if (endpoint.isAuth() && extensions.contains("AUTH")) {
+            authenticate(code, response);
+        } else {
+            sendMailFrom();
+        }
+    }
+
+    private void readExtensions(List<String> lines) {
+        extensions.clear();
+        authMechanisms.clear();
+        // the first line is the server greeting, every following line names one extension
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.length() <= 4) {
+                continue;
+            }
+            String[] parts = line.substring(4).trim().split("[\\s=]+");
+            String extension = parts[0].toUpperCase(Locale.ENGLISH);
+            extensions.add(extension);
+            if (extension.equals("AUTH")) {
+                for (int i = 1; i < parts.length; i++) {
+                    authMechanisms.add(parts[i].toUpperCase(Locale.ENGLISH));
+                }
+            }
+        }
+    }
+
+    private void authenticate(int code, String response) throws IOException {
+        if (authMechanisms.contains("PLAIN")) {
+            state = State.AUTH;
+            send("AUTH PLAIN " + base64("\0" + endpoint.getUser() + "\0" + endpoint.getPassword()), "AUTH PLAIN");
+        } else if (authMechanisms.contains("LOGIN")) {
+            state = State.AUTH_LOGIN_USER;
+            send("AUTH LOGIN");
+        } else {
+            failCommand(lastCommand, code, "No supported authentication mechanism in " + response);
+        }
+    }
+
+    private void sendEhlo() throws IOException {
+        state = State.EHLO;
+        send("EHLO " + endpoint.getLocalHost());
+    }
+
+    private void sendMailFrom() throws IOException {
+        state = State.MAIL_FROM;
+        String command = "MAIL FROM:<" + message.getFrom() + ">";
+        if (extensions.contains("SIZE")) {
+            command += " SIZE=" + message.getData().length;
+        }
+        send(command);
+    }
+
+    private void sendNextRecipient() throws IOException {
+        state = State.RCPT_TO;
+        send("RCPT TO:<" + message.getRecipients()[recipientIndex].getAddress() + ">");
+    }
+
+    private void send(String command) throws IOException {
+        send(command, command);
+    }
+
+    private void send(String command, String loggedCommand) throws IOException {
+        lastCommand = loggedCommand;
+        log.trace("C: {}", loggedCommand);
+        pendingOut = ByteBuffer.wrap((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        flush();
+    }
+
+    /**
+     * Writes as much of the pending output as the socket accepts, waiting for the next writable
+     * event if it would block and switching back to reading once everything has been written.
+     */
+    private void flush() throws IOException {
+        if (sslEngine == null) {
+            channel.write(pendingOut);
+            key.interestOps(pendingOut.hasRemaining() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            return;
+        }
+        while (true) {
+            if (pendingOut.hasRemaining()) {
+                SSLEngineResult wrapResult = sslEngine.wrap(pendingOut, netOut);
+                if (wrapResult.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0) {
+                    netOut = enlarge(netOut, sslEngine.getSession().getPacketBufferSize());
+                } else if (wrapResult.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new EOFException("TLS connection closed by " + endpoint.getHost() + ":" + endpoint.getPort());
+                }
+            }
+            if (!writeNet()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if (!pendingOut.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if all encrypted output has been written to the socket
+     */
+    private boolean writeNet() throws IOException {
+        netOut.flip();
+        try {
+            channel.write(netOut);
+            return !netOut.hasRemaining();
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer buffer, int minimumCapacity) {
+        ByteBuffer enlarged = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, minimumCapacity));
+        buffer.flip();
+        enlarged.put(buffer);
+        return enlarged;
+    }
+
+    private static String base64(String value) {
+        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Fails a connection-level command, which also closes the connection.
+     */
+    private void failCommand(String command, int code, String response) {
+        fail(new SMTPSendFailedException(command, code, response, null, null,
+                message != null ? message.getRecipients() : null, invalidRecipients.toArray(new Address[0])));
+    }
+
+    /**
+     * Fails the current message after the relay refused it, keeping the connection for the next message unless
+     * the relay said it is closing it.
+     */
+    private void rejectMessage(String command, int code, String response) throws IOException {
+        Address[] unsent = validRecipients.isEmpty() ? message.getRecipients() : validRecipients.toArray(new Address[0]);
+        finishMessage(new SMTPSendFailedException(command, code, response, null, null, unsent,
+                invalidRecipients.toArray(new Address[0])), code == 421);
+    }
+
+    private void rejectRecipients(boolean closing) throws IOException {
+        finishMessage(new SendFailedException("Invalid Addresses", recipientFailure, null,
+                validRecipients.toArray(new Address[0]), invalidRecipients.toArray(new Address[0])), closing);
+    }
+
+    /**
+     * Hands the connection back to the pool once the current message has been accepted or refused, and carries
+     * on with the next queued message if there is one.  The connection is back in the pool before the message
+     * completes, so a caller sending again straight away reuses it rather than opening another.
+     *
+     * @param failure why the relay refused the message, or null if it was accepted
+     * @param closing true if the relay said it is closing the connection
+     */
+    private void finishMessage(MessagingException failure, boolean closing) throws IOException {
+        NioSMTPMessage finished = message;
+        message = null;
+        NioSMTPMessage nextMessage = null;
+        if (closing) {
+            close();
+        } else {
+            nextMessage = pool.onIdle(this);
+            if (nextMessage == null) {
+                state = State.IDLE;
+                lastCommand = null;
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+        if (failure == null) {
+            finished.complete();
+        } else {
+            finished.fail(failure);
+        }
+        if (nextMessage != null) {
+            startMessage(nextMessage);
+            state = State.RSET;
+            send("RSET");
+        }
+    }
+
+    void fail(Exception e) {
+        if (!done && message != null) {
+            if (state == State.RSET) {
+                // nothing of this message has been sent, so a connection lost while reusing it isn't its failure
+                log.debug("Lost pooled connection to {}:{}, retrying the message on another", endpoint.getHost(), endpoint.getPort(), e);
+                pool.retry(message);
+            } else {
+                log.debug("SMTP delivery to {}:{} failed", endpoint.getHost(), endpoint.getPort(), e);
+                message.fail(e instanceof MessagingException ? (MessagingException) e
+                        : new MessagingException("Exception sending message to " + endpoint.getHost() + ":" + endpoint.getPort(), e));
+            }
+            message = null;
+        }
+        close();
+    }
+
+    private void close() {
+        if (done) {
+            return;
+        }
+        done = true;
+        if (message != null) {
+            message.fail(new MessagingException("Connection to " + endpoint.getHost() + " closed"));
+            message = null;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Caught exception closing SMTP connection", e);
+            }
+        }
+        pool.onClosed(this);
+    }
+}
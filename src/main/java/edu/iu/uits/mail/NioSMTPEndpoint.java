@@ -0,0 +1,248 @@
+package edu.iu.uits.mail;
+
+/*-
+ * #%L
+ * JavaMail S/MIME Transport
+ * %%
+ * Copyright (C) 2018 Indiana University - UITS
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Indiana University - UITS nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import javax.mail.MessagingException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * Connection settings for a relay used by {@link SMimeNioSMTPTransport}, read from the session properties
+ * using the same {@code mail.<protocol>.*} names as the blocking JavaMail SMTP transport.
+ */
+class NioSMTPEndpoint {
+
+    static final int DEFAULT_MAX_CONNECTIONS = 10;
+
+    private final String host;
+    private final int port;
+    private final String user;
+    private final String password;
+    private final String localHost;
+    private final boolean ssl;
+    private final boolean startTls;
+    private final boolean startTlsRequired;
+    private final boolean auth;
+    private final boolean sendPartial;
+    private final boolean checkServerIdentity;
+    private final boolean trusted;
+    private final String[] sslProtocols;
+    private final int connectionTimeout;
+    private final int timeout;
+    private final int maxConnections;
+    private final SSLContext sslContext;
+    private final InetSocketAddress address;
+
+    NioSMTPEndpoint(Properties properties, String protocol, String host, int port, String user, String password) throws MessagingException {
+        String prefix = "mail." + protocol + ".";
+        this.ssl = Boolean.parseBoolean(properties.getProperty(prefix + "ssl.enable"));
+        this.host = host != null && !host.trim().isEmpty() ? host : "localhost";
+        int configuredPort = getIntProperty(properties, prefix + "port");
+        this.port = port > 0 ? port : configuredPort > 0 ? configuredPort : (ssl ? 465 : 25);
+        this.user = user;
+        this.password = password;
+        this.startTls = Boolean.parseBoolean(properties.getProperty(prefix + "starttls.enable"));
+        this.startTlsRequired = Boolean.parseBoolean(properties.getProperty(prefix + "starttls.required"));
+        this.auth = Boolean.parseBoolean(properties.getProperty(prefix + "auth"));
+        this.sendPartial = Boolean.parseBoolean(properties.getProperty(prefix + "sendpartial"));
+        this.checkServerIdentity = Boolean.parseBoolean(properties.getProperty(prefix + "ssl.checkserveridentity"));
+        this.trusted = isTrusted(properties.getProperty(prefix + "ssl.trust"), this.host);
+        String protocols = properties.getProperty(prefix + "ssl.protocols");
+        this.sslProtocols = protocols != null && !protocols.trim().isEmpty() ? protocols.trim().split("\\s+") : null;
+        this.connectionTimeout = getIntProperty(properties, prefix + "connectiontimeout");
+        this.timeout = getIntProperty(properties, prefix + "timeout");
+        int configuredMaxConnections = getIntProperty(properties, prefix + "maxconnections");
+        this.maxConnections = configuredMaxConnections > 0 ? configuredMaxConnections : DEFAULT_MAX_CONNECTIONS;
+
+        String configuredLocalHost = properties.getProperty(prefix + "localhost");
+        if (configuredLocalHost == null || configuredLocalHost.trim().isEmpty()) {
+            try {
+                configuredLocalHost = InetAddress.getLocalHost().getCanonicalHostName();
+            } catch (UnknownHostException e) {
+                configuredLocalHost = "localhost";
+            }
+        }
+        this.localHost = configuredLocalHost;
+
+        try {
+            if (!ssl && !startTls) {
+                this.sslContext = null;
+            } else if (trusted) {
+                this.sslContext = SSLContext.getInstance("TLS");
+                this.sslContext.init(null, new TrustManager[]{new TrustAllTrustManager()}, null);
+            } else {
+                this.sslContext = SSLContext.getDefault();
+            }
+        } catch (NoSuchAlgorithmException | KeyManagementException e) {
+            throw new MessagingException("Unable to create an SSL context", e);
+        }
+
+        // resolve on the connecting thread so DNS lookups never stall a selector thread
+        this.address = new InetSocketAddress(this.host, this.port);
+    }
+
+    /**
+     * Follows the JavaMail {@code ssl.trust} convention: {@code *} trusts every host, otherwise a whitespace
+     * separated list of hosts whose certificates are trusted without validation.
+     */
+    private static boolean isTrusted(String trust, String host) {
+        if (trust == null || trust.trim().isEmpty()) {
+            return false;
+        }
+        return Arrays.stream(trust.trim().split("\\s+")).anyMatch(trustedHost -> trustedHost.equals("*") || trustedHost.equalsIgnoreCase(host));
+    }
+
+    private static int getIntProperty(Properties properties, String name) {
+        String value = properties.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    SSLEngine createSSLEngine() {
+        SSLEngine sslEngine = sslContext.createSSLEngine(host, port);
+        sslEngine.setUseClientMode(true);
+        if (sslProtocols != null) {
+            sslEngine.setEnabledProtocols(sslProtocols);
+        }
+        if (checkServerIdentity && !trusted) {
+            SSLParameters sslParameters = sslEngine.getSSLParameters();
+            sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+            sslEngine.setSSLParameters(sslParameters);
+        }
+        return sslEngine;
+    }
+
+    /**
+     * Identifies the connection pool for this endpoint.  Endpoints only share pooled connections when every
+     * setting which affects the connection or the conversation on it is the same.
+     */
+    String getPoolKey() {
+        return String.join("|", host.toLowerCase(Locale.ENGLISH), String.valueOf(port), String.valueOf(user),
+                String.valueOf(Objects.hashCode(password)), localHost, String.valueOf(ssl), String.valueOf(startTls),
+                String.valueOf(startTlsRequired), String.valueOf(auth), String.valueOf(sendPartial),
+                String.valueOf(checkServerIdentity), String.valueOf(trusted), Arrays.toString(sslProtocols),
+                String.valueOf(connectionTimeout), String.valueOf(timeout), String.valueOf(maxConnections));
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    String getUser() {
+        return user;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    String getLocalHost() {
+        return localHost;
+    }
+
+    boolean isSsl() {
+        return ssl;
+    }
+
+    boolean isStartTls() {
+        return startTls;
+    }
+
+    boolean isStartTlsRequired() {
+        return startTlsRequired;
+    }
+
+    boolean isAuth() {
+        return auth && user != null && password != null;
+    }
+
+    boolean isSendPartial() {
+        return sendPartial;
+    }
+
+    int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    int getTimeout() {
+        return timeout;
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    private static class TrustAllTrustManager implements X509TrustManager {
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
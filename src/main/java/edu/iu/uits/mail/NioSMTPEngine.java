@@ -0,0 +1,288 @@
+package edu.iu.uits.mail;
+
+/*-
+ * #%L
+ * JavaMail S/MIME Transport
+ * %%
+ * Copyright (C) 2018 Indiana University - UITS
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Indiana University - UITS nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Runs SMTP conversations over non-blocking sockets using a small, fixed number of selector threads, so the
+ * number of concurrent deliveries is not bounded by the number of threads available to send them.  Connections
+ * are pooled per relay, see {@link NioSMTPConnectionPool}.
+ */
+@Slf4j
+public class NioSMTPEngine {
+
+    public static final String SELECTOR_THREADS_PROPERTY = "mail.smtp+smime+nio.selectors";
+
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    private static final String SHUT_DOWN_MESSAGE = "The SMTP engine has been shut down";
+
+    private static volatile NioSMTPEngine sharedEngine;
+
+    private final AtomicReferenceArray<SelectorLoop> selectorLoops;
+    private final AtomicInteger nextSelectorLoop = new AtomicInteger();
+    private final ConcurrentMap<String, NioSMTPConnectionPool> connectionPools = new ConcurrentHashMap<>();
+    private volatile boolean shutdown;
+
+    public NioSMTPEngine(int selectorThreads) {
+        selectorLoops = new AtomicReferenceArray<>(Math.max(1, selectorThreads));
+        for (int i = 0; i < selectorLoops.length(); i++) {
+            selectorLoops.set(i, startSelectorLoop(i));
+        }
+    }
+
+    private static SelectorLoop startSelectorLoop(int index) {
+        SelectorLoop selectorLoop;
+        try {
+            selectorLoop = new SelectorLoop(Selector.open());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open a selector for the SMTP engine", e);
+        }
+        Thread thread = new Thread(selectorLoop, "smime-nio-smtp-" + index);
+        thread.setDaemon(true);
+        thread.start();
+        return selectorLoop;
+    }
+
+    /**
+     * Returns the engine shared by every {@link SMimeNioSMTPTransport} in the JVM, creating it on first use with
+     * the number of selector threads configured by {@value #SELECTOR_THREADS_PROPERTY}, defaulting to one per core.
+     * A new engine is created if the shared one has been shut down.
+     */
+    public static NioSMTPEngine getSharedEngine(Properties properties) {
+        NioSMTPEngine engine = sharedEngine;
+        if (engine != null) {
+            return engine;
+        }
+        synchronized (NioSMTPEngine.class) {
+            if (sharedEngine == null) {
+                int selectorThreads = Runtime.getRuntime().availableProcessors();
+                String configured = properties.getProperty(SELECTOR_THREADS_PROPERTY);
+                if (configured != null && !configured.trim().isEmpty()) {
+                    try {
+                        selectorThreads = Integer.parseInt(configured.trim());
+                    } catch (NumberFormatException e) {
+                        log.warn(String.format("Invalid value %s for %s.  Using %d selector threads.", configured, SELECTOR_THREADS_PROPERTY, selectorThreads));
+                    }
+                }
+                sharedEngine = new NioSMTPEngine(selectorThreads);
+            }
+            return sharedEngine;
+        }
+    }
+
+    /**
+     * Queues the message on the relay's connection pool, which sends it over an idle connection, opens a new one
+     * or holds it until a connection is free.
+     */
+    CompletableFuture<Void> deliver(NioSMTPEndpoint endpoint, NioSMTPMessage message) {
+        if (shutdown) {
+            message.fail(new MessagingException(SHUT_DOWN_MESSAGE));
+            return message.getResult();
+        }
+        connectionPools.computeIfAbsent(endpoint.getPoolKey(), key -> new NioSMTPConnectionPool(this, endpoint.getMaxConnections()))
+                .submit(endpoint, message);
+        return message.getResult();
+    }
+
+    /**
+     * Starts a new connection on one of the selector threads, replacing any selector thread which has died.
+     */
+    void open(NioSMTPConversation conversation) {
+        if (shutdown) {
+            conversation.fail(new IllegalStateException(SHUT_DOWN_MESSAGE));
+            return;
+        }
+        int index = Math.floorMod(nextSelectorLoop.getAndIncrement(), selectorLoops.length());
+        SelectorLoop selectorLoop = selectorLoops.get(index);
+        try {
+            if (!selectorLoop.isRunning()) {
+                selectorLoop = replaceSelectorLoop(index, selectorLoop);
+            }
+        } catch (UncheckedIOException e) {
+            conversation.fail(e);
+            return;
+        }
+        selectorLoop.register(conversation);
+    }
+
+    private synchronized SelectorLoop replaceSelectorLoop(int index, SelectorLoop deadLoop) {
+        SelectorLoop selectorLoop = selectorLoops.get(index);
+        if (selectorLoop == deadLoop && !shutdown) {
+            log.warn(String.format("SMTP selector thread %d has stopped.  Starting a new one.", index));
+            selectorLoop = startSelectorLoop(index);
+            selectorLoops.set(index, selectorLoop);
+        }
+        return selectorLoop;
+    }
+
+    /**
+     * Stops the selector threads, failing any deliveries which are still in flight.  If this is the shared
+     * engine, later calls to {@link #getSharedEngine(Properties)} start a new one.
+     */
+    public void shutdown() {
+        synchronized (NioSMTPEngine.class) {
+            shutdown = true;
+            if (sharedEngine == this) {
+                sharedEngine = null;
+            }
+        }
+        for (int i = 0; i < selectorLoops.length(); i++) {
+            selectorLoops.get(i).shutdown();
+        }
+    }
+
+    private static class SelectorLoop implements Runnable, Executor {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+        private long lastTimeoutCheck = System.currentTimeMillis();
+
+        SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        boolean isRunning() {
+            return running;
+        }
+
+        void register(NioSMTPConversation conversation) {
+            execute(() -> {
+                try {
+                    conversation.start(this, selector);
+                } catch (Exception e) {
+                    conversation.fail(e);
+                }
+            });
+        }
+
+        /**
+         * Runs the task on the selector thread, or straight away on the calling thread if the selector
+         * thread has stopped, where it fails against the closed selector or connection.
+         */
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+            if (!running && tasks.remove(task)) {
+                task.run();
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(SELECT_TIMEOUT_MILLIS);
+                    runTasks();
+
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
+                        NioSMTPConversation conversation = (NioSMTPConversation) key.attachment();
+                        try {
+                            if (key.isValid()) {
+                                conversation.handle(key);
+                            }
+                        } catch (Exception e) {
+                            conversation.fail(e);
+                        }
+                    }
+
+                    // timeouts are measured in seconds, so checking every connection once per select timeout is
+                    // enough, and avoids walking every connection on each readiness event
+                    long now = System.currentTimeMillis();
+                    if (now - lastTimeoutCheck >= SELECT_TIMEOUT_MILLIS) {
+                        lastTimeoutCheck = now;
+                        for (SelectionKey key : selector.keys()) {
+                            if (key.isValid()) {
+                                ((NioSMTPConversation) key.attachment()).checkTimeout(now);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                log.error("Caught exception in SMTP selector loop.  Failing all in-flight deliveries.", e);
+            } finally {
+                running = false;
+                closeAll();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void closeAll() {
+            IllegalStateException shutdown = new IllegalStateException(SHUT_DOWN_MESSAGE);
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    ((NioSMTPConversation) key.attachment()).fail(shutdown);
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                log.debug("Caught exception closing SMTP selector", e);
+            }
+            // anything queued for this thread now runs against a closed selector and fails or is retried elsewhere
+            runTasks();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package edu.iu.uits.mail;
+
+/*-
+ * #%L
+ * JavaMail S/MIME Transport
+ * %%
+ * Copyright (C) 2018 Indiana University - UITS
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Indiana University - UITS nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import javax.mail.*;
+import javax.mail.event.TransportEvent;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * An S/MIME signing transport which hands each signed message to a shared {@link NioSMTPEngine} instead of
+ * holding a connection and a thread for the whole SMTP conversation.  Messages are delivered over connections
+ * pooled per relay, so a single instance may be used to send from many threads at once.
+ */
+public class SMimeNioSMTPTransport extends Transport {
+
+    public static final String PROTOCOL = "smtp+smime+nio";
+
+    private MailSigner mailSigner;
+    private SendRateLimiter sendRateLimiter;
+    private volatile NioSMTPEndpoint endpoint;
+
+    public SMimeNioSMTPTransport(Session session, URLName urlname) {
+        super(session, urlname);
+        mailSigner = new MailSigner(session.getProperties());
+        sendRateLimiter = new SendRateLimiter(session.getProperties());
+    }
+
+    @Override
+    protected boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+        endpoint = new NioSMTPEndpoint(session.getProperties(), PROTOCOL, host, port, user, password);
+        return true;
+    }
+
+    @Override
+    public void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        NioSMTPEndpoint connectedEndpoint = getConnectedEndpoint();
+        InternetAddress[] recipients = getRecipients(message, addresses);
+        SendRateLimiter.Permit permit = sendRateLimiter.acquire(getRelay(connectedEndpoint), message);
+        try {
+            deliver(connectedEndpoint, message, addresses, recipients, permit).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for the message to be sent", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MessagingException) {
+                throw (MessagingException) e.getCause();
+            }
+            throw new MessagingException("Exception sending message", (Exception) e.getCause());
+        }
+    }
+
+    /**
+     * Signs the message on the calling thread and queues it for delivery, returning without waiting for the
+     * relay.  The returned future fails with a {@link MessagingException} if the message could not be sent,
+     * or straight away with a {@link SendRateLimitedException} if the rate limits don't allow it to be sent yet.
+     */
+    public CompletableFuture<Void> sendMessageAsync(Message message, Address[] addresses) throws MessagingException {
+        NioSMTPEndpoint connectedEndpoint = getConnectedEndpoint();
+        InternetAddress[] recipients = getRecipients(message, addresses);
+        String relay = getRelay(connectedEndpoint);
+        Optional<SendRateLimiter.Permit> permit = sendRateLimiter.tryAcquire(relay, message);
+        if (!permit.isPresent()) {
+            return CompletableFuture.failedFuture(new SendRateLimitedException("Rate limit for " + relay + " exceeded"));
+        }
+        return deliver(connectedEndpoint, message, addresses, recipients, permit.get());
+    }
+
+    private NioSMTPEndpoint getConnectedEndpoint() {
+        NioSMTPEndpoint connectedEndpoint = endpoint;
+        if (!isConnected() || connectedEndpoint == null) {
+            throw new IllegalStateException("Not connected");
+        }
+        return connectedEndpoint;
+    }
+
+    private static InternetAddress[] getRecipients(Message message, Address[] addresses) throws MessagingException {
+        if (!(message instanceof MimeMessage)) {
+            throw new MessagingException("SMTP can only send RFC822 messages");
+        }
+        InternetAddress[] recipients = new InternetAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            if (!(addresses[i] instanceof InternetAddress)) {
+                throw new MessagingException(addresses[i] + " is not an InternetAddress");
+            }
+            recipients[i] = (InternetAddress) addresses[i];
+        }
+        if (recipients.length == 0) {
+            throw new SendFailedException("No recipient addresses");
+        }
+        return recipients;
+    }
+
+    private static String getRelay(NioSMTPEndpoint connectedEndpoint) {
+        return SendRateLimiter.getRelay(connectedEndpoint.getHost(), connectedEndpoint.getPort());
+    }
+
+    private CompletableFuture<Void> deliver(NioSMTPEndpoint connectedEndpoint, Message message, Address[] addresses,
+                                            InternetAddress[] recipients, SendRateLimiter.Permit permit) throws MessagingException {
+        Optional<MimeMessage> signedMessage = mailSigner.signMessage((MimeMessage) message);
+        MimeMessage outgoingMessage = signedMessage.orElse((MimeMessage) message);
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            outgoingMessage.writeTo(content);
+        } catch (IOException e) {
+            throw new MessagingException("Unable to write the message content", e);
+        }
+
+        NioSMTPMessage smtpMessage = new NioSMTPMessage(getEnvelopeFrom(outgoingMessage), recipients, content.toByteArray());
+        MailPhaseEvent deliveryEvent = new MailPhaseEvent.SmtpDelivery();
+        deliveryEvent.begin();
+        permit.startDelivery();
+        // looked up for every message, since the shared engine is replaced if it is ever shut down
+        return NioSMTPEngine.getSharedEngine(session.getProperties()).deliver(connectedEndpoint, smtpMessage).whenComplete((result, failure) -> {
+            Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+            if (cause == null) {
+                permit.onDelivered();
+                deliveryEvent.complete(content.size(), MailPhaseEvent.getSender(message), MailPhaseEvent.SUCCESS);
+                notifyTransportListeners(TransportEvent.MESSAGE_DELIVERED, addresses, new Address[0], new Address[0], message);
+                return;
+            }
+            if (cause instanceof Exception) {
+                permit.onFailed((Exception) cause);
+            }
+            deliveryEvent.complete(content.size(), MailPhaseEvent.getSender(message), MailPhaseEvent.FAILURE);
+            if (cause instanceof SendFailedException) {
+                SendFailedException sendFailure = (SendFailedException) cause;
+                notifyTransportListeners(sendFailure.getValidSentAddresses() != null && sendFailure.getValidSentAddresses().length > 0
+                                ? TransportEvent.MESSAGE_PARTIALLY_DELIVERED : TransportEvent.MESSAGE_NOT_DELIVERED,
+                        orEmpty(sendFailure.getValidSentAddresses()), orEmpty(sendFailure.getValidUnsentAddresses()),
+                        orEmpty(sendFailure.getInvalidAddresses()), message);
+            } else {
+                notifyTransportListeners(TransportEvent.MESSAGE_NOT_DELIVERED, new Address[0], addresses, new Address[0], message);
+            }
+        });
+    }
+
+    private String getEnvelopeFrom(MimeMessage message) throws MessagingException {
+        String from = session.getProperty("mail." + PROTOCOL + ".from");
+        if (from != null && !from.trim().isEmpty()) {
+            return from;
+        }
+        Address[] fromAddresses = message.getFrom();
+        if (fromAddresses != null && fromAddresses.length > 0 && fromAddresses[0] instanceof InternetAddress) {
+            return ((InternetAddress) fromAddresses[0]).getAddress();
+        }
+        InternetAddress localAddress = InternetAddress.getLocalAddress(session);
+        if (localAddress == null) {
+            throw new MessagingException("Can't determine the envelope from address");
+        }
+        return localAddress.getAddress();
+    }
+
+    private static Address[] orEmpty(Address[] addresses) {
+        return addresses != null ? addresses : new Address[0];
+    }
+}
@@ -37,26 +37,65 @@ import com.sun.mail.smtp.SMTPTransport;
 
 import javax.mail.*;
 import javax.mail.internet.MimeMessage;
+import java.io.OutputStream;
 import java.util.Optional;
 
 public class SMimeSMTPTransport extends SMTPTransport {
 
     private MailSigner mailSigner;
+    private SendRateLimiter sendRateLimiter;
+    private CountingOutputStream messageOutput;
+    private boolean ssl;
 
     public SMimeSMTPTransport(Session session, URLName urlname) {
         super(session, urlname);
         mailSigner = new MailSigner(session.getProperties());
+        sendRateLimiter = new SendRateLimiter(session.getProperties());
     }
 
     protected SMimeSMTPTransport(Session session, URLName urlname, String name, boolean isSSL) {
         super(session, urlname, name, isSSL);
+        ssl = isSSL;
         mailSigner = new MailSigner(session.getProperties());
+        sendRateLimiter = new SendRateLimiter(session.getProperties());
     }
 
     @Override
     public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        // wait for the rate limits before signing, so a message is never signed only to be refused by the relay
+        SendRateLimiter.Permit permit = sendRateLimiter.acquire(SendRateLimiter.getRelay(session, getURLName(), ssl), message);
         Optional<MimeMessage> signedMessage = mailSigner.signMessage((MimeMessage)message);
-        super.sendMessage(signedMessage.isPresent() ? signedMessage.get() : message, addresses);
+        MimeMessage outgoingMessage = signedMessage.orElse((MimeMessage) message);
+        MailPhaseEvent deliveryEvent = new MailPhaseEvent.SmtpDelivery();
+        messageOutput = null;
+        deliveryEvent.begin();
+        permit.startDelivery();
+        try {
+            super.sendMessage(outgoingMessage, addresses);
+            permit.onDelivered();
+            deliveryEvent.complete(getMessageSize(), MailPhaseEvent.getSender(message), MailPhaseEvent.SUCCESS);
+        } catch (MessagingException e) {
+            permit.onFailed(e);
+            deliveryEvent.complete(getMessageSize(), MailPhaseEvent.getSender(message), MailPhaseEvent.FAILURE);
+            throw e;
+        }
+    }
+
+    // count the message as SMTPTransport writes it, so its size is known without writing it again
+    @Override
+    protected OutputStream data() throws MessagingException {
+        messageOutput = new CountingOutputStream(super.data());
+        return messageOutput;
+    }
+
+    @Override
+    protected OutputStream bdat() throws MessagingException {
+        messageOutput = new CountingOutputStream(super.bdat());
+        return messageOutput;
+    }
+
+    private long getMessageSize() {
+        return messageOutput != null ? messageOutput.getCount() : -1;
     }
 
 }
@@ -0,0 +1,291 @@
+package edu.iu.uits.mail;
+
+/*-
+ * #%L
+ * JavaMail S/MIME Transport
+ * %%
+ * Copyright (C) 2018 Indiana University - UITS
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Indiana University - UITS nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how quickly messages are handed to a relay, per relay and per sender address, before they are signed.
+ * The buckets are shared by every transport in the JVM that uses the same relay or sender with the same rate and
+ * burst, so sessions configured differently never share a limit.  They slow down whenever the relay answers with a
+ * 421 or 451, so callers get backpressure instead of a signed message that the relay then refuses.  Sender buckets
+ * that have not been used for {@link #SENDER_IDLE_MINUTES} minutes are dropped so the map does not grow with
+ * every address ever seen.
+ * Limiting is disabled unless {@value #RELAY_RATE_PROPERTY} or {@value #SENDER_RATE_PROPERTY} is set.
+ */
+@Slf4j
+public class SendRateLimiter {
+
+    public static final String RELAY_RATE_PROPERTY = "mail.smime.ratelimit.relay.rate";
+    public static final String RELAY_BURST_PROPERTY = "mail.smime.ratelimit.relay.burst";
+    public static final String SENDER_RATE_PROPERTY = "mail.smime.ratelimit.sender.rate";
+    public static final String SENDER_BURST_PROPERTY = "mail.smime.ratelimit.sender.burst";
+    public static final String MAX_WAIT_PROPERTY = "mail.smime.ratelimit.maxwait";
+    public static final String LATENCY_TARGET_PROPERTY = "mail.smime.ratelimit.latency";
+
+    static final long SENDER_IDLE_MINUTES = 10;
+
+    private static final ConcurrentMap<String, TokenBucket> RELAY_BUCKETS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, TokenBucket> SENDER_BUCKETS = new ConcurrentHashMap<>();
+    private static final AtomicLong NEXT_SENDER_EVICTION = new AtomicLong(System.nanoTime());
+
+    private final double relayRate;
+    private final double relayBurst;
+    private final double senderRate;
+    private final double senderBurst;
+    private final long maxWaitMillis;
+    private final long latencyTargetMillis;
+
+    public SendRateLimiter(Properties properties) {
+        this.relayRate = getDoubleProperty(properties, RELAY_RATE_PROPERTY, 0);
+        this.relayBurst = getDoubleProperty(properties, RELAY_BURST_PROPERTY, relayRate);
+        this.senderRate = getDoubleProperty(properties, SENDER_RATE_PROPERTY, 0);
+        this.senderBurst = getDoubleProperty(properties, SENDER_BURST_PROPERTY, senderRate);
+        this.maxWaitMillis = (long) getDoubleProperty(properties, MAX_WAIT_PROPERTY, -1);
+        this.latencyTargetMillis = (long) getDoubleProperty(properties, LATENCY_TARGET_PROPERTY, 0);
+    }
+
+    private static double getDoubleProperty(Properties properties, String name, double defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn(String.format("Invalid value %s for %s.  Using %s.", value, name, defaultValue));
+            return defaultValue;
+        }
+    }
+
+    public static String getRelay(String host, int port) {
+        return (host != null ? host.toLowerCase(Locale.ENGLISH) : "localhost") + ":" + port;
+    }
+
+    /**
+     * Returns the relay a blocking transport is connected to, filling in the port the same way the SMTP
+     * transport does when the URL has none, so the key matches the one used by {@link SMimeNioSMTPTransport}.
+     */
+    static String getRelay(Session session, URLName urlName, boolean ssl) {
+        int port = urlName.getPort();
+        String prefix = "mail." + urlName.getProtocol() + ".";
+        if (port <= 0) {
+            try {
+                port = Integer.parseInt(session.getProperty(prefix + "port").trim());
+            } catch (NullPointerException | NumberFormatException e) {
+                port = -1;
+            }
+        }
+        if (port <= 0) {
+            port = ssl || Boolean.parseBoolean(session.getProperty(prefix + "ssl.enable")) ? 465 : 25;
+        }
+        return getRelay(urlName.getHost(), port);
+    }
+
+    /**
+     * Waits until both the relay and the message's sender are allowed another message, for at most
+     * {@value #MAX_WAIT_PROPERTY} milliseconds if that is set.
+     *
+     * @throws SendRateLimitedException if no permit becomes available in time
+     */
+    public Permit acquire(String relay, Message message) throws MessagingException {
+        TokenBucket relayBucket = getRelayBucket(relay);
+        TokenBucket senderBucket = getSenderBucket(message);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (true) {
+            long wait = tryTake(relayBucket, senderBucket);
+            if (wait == 0) {
+                return new Permit(relayBucket, senderBucket);
+            }
+            if (maxWaitMillis >= 0 && System.nanoTime() + wait > deadline) {
+                throw new SendRateLimitedException("Rate limit for " + relay + " exceeded");
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted while waiting for the rate limit for " + relay, e);
+            }
+        }
+    }
+
+    /**
+     * Takes a permit only if one is available right now.
+     */
+    public Optional<Permit> tryAcquire(String relay, Message message) throws MessagingException {
+        TokenBucket relayBucket = getRelayBucket(relay);
+        TokenBucket senderBucket = getSenderBucket(message);
+        if (tryTake(relayBucket, senderBucket) == 0) {
+            return Optional.of(new Permit(relayBucket, senderBucket));
+        }
+        return Optional.empty();
+    }
+
+    private static long tryTake(TokenBucket relayBucket, TokenBucket senderBucket) {
+        long relayWait = relayBucket != null ? relayBucket.tryTake() : 0;
+        if (relayWait > 0) {
+            return relayWait;
+        }
+        long senderWait = senderBucket != null ? senderBucket.tryTake() : 0;
+        if (senderWait > 0 && relayBucket != null) {
+            relayBucket.giveBack();
+        }
+        return senderWait;
+    }
+
+    private TokenBucket getRelayBucket(String relay) {
+        if (relayRate <= 0) {
+            return null;
+        }
+        return RELAY_BUCKETS.computeIfAbsent(relay + "@" + relayRate + "/" + relayBurst, key -> new TokenBucket(relayRate, relayBurst));
+    }
+
+    private TokenBucket getSenderBucket(Message message) throws MessagingException {
+        if (senderRate <= 0) {
+            return null;
+        }
+        Address[] from = message.getFrom();
+        if (from == null || from.length == 0 || !(from[0] instanceof InternetAddress)) {
+            return null;
+        }
+        String sender = ((InternetAddress) from[0]).getAddress().toLowerCase(Locale.ENGLISH);
+        long now = System.nanoTime();
+        long nextEviction = NEXT_SENDER_EVICTION.get();
+        if (now - nextEviction >= 0 && NEXT_SENDER_EVICTION.compareAndSet(nextEviction, now + TimeUnit.MINUTES.toNanos(1))) {
+            evictIdleSenderBuckets(TimeUnit.MINUTES.toNanos(SENDER_IDLE_MINUTES));
+        }
+        return SENDER_BUCKETS.computeIfAbsent(sender + "@" + senderRate + "/" + senderBurst, key -> new TokenBucket(senderRate, senderBurst));
+    }
+
+    /**
+     * Returns the current rate of the relay's bucket for this limiter's settings, or 0 if relay limiting is disabled.
+     */
+    double getRelayRate(String relay) {
+        TokenBucket relayBucket = getRelayBucket(relay);
+        return relayBucket != null ? relayBucket.getRate() : 0;
+    }
+
+    static void evictIdleSenderBuckets(long idleNanos) {
+        SENDER_BUCKETS.values().removeIf(bucket -> bucket.isIdle(idleNanos));
+    }
+
+    static int getSenderBucketCount() {
+        return SENDER_BUCKETS.size();
+    }
+
+    /**
+     * Returns the SMTP reply code behind a failed send, or -1 if the failure did not come from the relay.
+     */
+    static int getReturnCode(Exception e) {
+        Exception current = e;
+        while (current != null) {
+            if (current instanceof SMTPSendFailedException) {
+                return ((SMTPSendFailedException) current).getReturnCode();
+            }
+            if (current instanceof SMTPAddressFailedException) {
+                return ((SMTPAddressFailedException) current).getReturnCode();
+            }
+            current = current instanceof MessagingException ? ((MessagingException) current).getNextException() : null;
+        }
+        return -1;
+    }
+
+    /**
+     * Permission to send one message.  Report how the send went so the limits can adapt.
+     */
+    public class Permit {
+
+        private final TokenBucket relayBucket;
+        private final TokenBucket senderBucket;
+        private long deliveryStart;
+        private boolean delivering;
+
+        private Permit(TokenBucket relayBucket, TokenBucket senderBucket) {
+            this.relayBucket = relayBucket;
+            this.senderBucket = senderBucket;
+        }
+
+        /**
+         * Marks the point the message is handed to the relay, so signing and queueing are not counted
+         * against {@value #LATENCY_TARGET_PROPERTY}.
+         */
+        public void startDelivery() {
+            deliveryStart = System.nanoTime();
+            delivering = true;
+        }
+
+        public void onDelivered() {
+            boolean slow = delivering && latencyTargetMillis > 0
+                    && TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - deliveryStart) > latencyTargetMillis;
+            for (TokenBucket bucket : new TokenBucket[]{relayBucket, senderBucket}) {
+                if (bucket != null) {
+                    if (slow) {
+                        bucket.onSlow();
+                    } else {
+                        bucket.onSuccess();
+                    }
+                }
+            }
+        }
+
+        public void onFailed(Exception e) {
+            int returnCode = getReturnCode(e);
+            if (returnCode != 421 && returnCode != 451) {
+                return;
+            }
+            for (TokenBucket bucket : new TokenBucket[]{relayBucket, senderBucket}) {
+                if (bucket != null) {
+                    bucket.onThrottled();
+                    log.warn(String.format("Relay responded with %d.  Reducing send rate to %.2f messages per second.", returnCode, bucket.getRate()));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package edu.iu.uits.mail;
+
+/*-
+ * #%L
+ * JavaMail S/MIME Transport
+ * %%
+ * Copyright (C) 2018 Indiana University - UITS
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Indiana University - UITS nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.DigestCalculatorProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hands every signer of a message the same digest calculator for a given algorithm, so the content is only
+ * hashed once however many signatures are added.  The first calculator handed out for an algorithm does the
+ * hashing; later ones ignore the content written to them and return its digest.  A new instance must be used
+ * for each message.
+ */
+class SharedDigestCalculatorProvider implements DigestCalculatorProvider {
+
+    private final DigestCalculatorProvider digestCalculatorProvider;
+    private final Map<AlgorithmIdentifier, SharedDigestCalculator> digestCalculators = new HashMap<>();
+
+    SharedDigestCalculatorProvider(DigestCalculatorProvider digestCalculatorProvider) {
+        this.digestCalculatorProvider = digestCalculatorProvider;
+    }
+
+    @Override
+    public synchronized DigestCalculator get(AlgorithmIdentifier digestAlgorithmIdentifier) throws OperatorCreationException {
+        SharedDigestCalculator shared = digestCalculators.get(digestAlgorithmIdentifier);
+        if (shared == null) {
+            shared = new SharedDigestCalculator(digestCalculatorProvider.get(digestAlgorithmIdentifier));
+            digestCalculators.put(digestAlgorithmIdentifier, shared);
+            return shared;
+        }
+        SharedDigestCalculator calculating = shared;
+        return new DigestCalculator() {
+            @Override
+            public AlgorithmIdentifier getAlgorithmIdentifier() {
+                return calculating.getAlgorithmIdentifier();
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                return OutputStream.nullOutputStream();
+            }
+
+            @Override
+            public byte[] getDigest() {
+                return calculating.getDigest();
+            }
+        };
+    }
+
+    private static class SharedDigestCalculator implements DigestCalculator {
+
+        private final DigestCalculator digestCalculator;
+        private byte[] digest;
+
+        SharedDigestCalculator(DigestCalculator digestCalculator) {
+            this.digestCalculator = digestCalculator;
+        }
+
+        @Override
+        public AlgorithmIdentifier getAlgorithmIdentifier() {
+            return digestCalculator.getAlgorithmIdentifier();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return digestCalculator.getOutputStream();
+        }
+
+        @Override
+        public synchronized byte[] getDigest() {
+            // the underlying digest resets once read, so keep the result for the other signers
+            if (digest == null) {
+                digest = digestCalculator.getDigest();
+            }
+            return digest.clone();
+        }
+    }
+}
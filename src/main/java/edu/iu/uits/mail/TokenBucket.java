@@ -0,0 +1,114 @@
+package edu.iu.uits.mail;
+
+/*-
+ * #%L
+ * JavaMail S/MIME Transport
+ * %%
+ * Copyright (C) 2018 Indiana University - UITS
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Indiana University - UITS nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+/**
+ * A token bucket whose refill rate adapts to how the relay is coping: it is halved whenever the relay pushes
+ * back with a transient failure, eased down when deliveries are slow and grows back towards the configured
+ * rate as deliveries succeed.
+ */
+class TokenBucket {
+
+    private static final double MINIMUM_RATE_FRACTION = 0.05;
+    private static final double THROTTLED_FACTOR = 0.5;
+    private static final double SLOW_FACTOR = 0.9;
+    private static final double RECOVERY_FRACTION = 0.05;
+
+    private final double maximumRate;
+    private final double minimumRate;
+    private final double capacity;
+
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long lastUsed;
+
+    TokenBucket(double maximumRate, double capacity) {
+        this.maximumRate = maximumRate;
+        this.minimumRate = maximumRate * MINIMUM_RATE_FRACTION;
+        this.capacity = Math.max(1, capacity);
+        this.rate = maximumRate;
+        this.tokens = this.capacity;
+        this.lastRefill = System.nanoTime();
+        this.lastUsed = lastRefill;
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return 0 if a token was taken, otherwise the number of nanoseconds until one will be
+     */
+    synchronized long tryTake() {
+        refill();
+        lastUsed = lastRefill;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / rate * 1_000_000_000L));
+    }
+
+    synchronized void giveBack() {
+        tokens = Math.min(capacity, tokens + 1);
+    }
+
+    synchronized void onThrottled() {
+        refill();
+        rate = Math.max(minimumRate, rate * THROTTLED_FACTOR);
+        // drop any saved up burst so the lower rate takes effect immediately
+        tokens = Math.min(tokens, 0);
+    }
+
+    synchronized void onSlow() {
+        rate = Math.max(minimumRate, rate * SLOW_FACTOR);
+    }
+
+    synchronized void onSuccess() {
+        rate = Math.min(maximumRate, rate + maximumRate * RECOVERY_FRACTION);
+    }
+
+    synchronized boolean isIdle(long idleNanos) {
+        return System.nanoTime() - lastUsed >= idleNanos;
+    }
+
+    synchronized double getRate() {
+        return rate;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1_000_000_000L);
+        lastRefill = now;
+    }
+}
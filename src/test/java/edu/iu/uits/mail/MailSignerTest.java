@@ -33,6 +33,15 @@ package edu.iu.uits.mail;
  * #L%
  */
 
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.mail.smime.SMIMESigned;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
@@ -40,10 +49,39 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
 import java.util.Properties;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @ExtendWith(MockitoExtension.class)
 public class MailSignerTest {
@@ -111,4 +149,229 @@ public class MailSignerTest {
         assertEquals(KEYSTORE_PASSWORD, emailPassword);
     }
 
+    @Test
+    @DisplayName("Test that alias resolution is recorded as a flight recorder event")
+    public void testAliasResolutionEvent() throws Exception {
+        mailSigner = new MailSigner(properties, keyStore);
+        MimeMessage message = new MimeMessage(Session.getInstance(properties));
+        message.setFrom(new InternetAddress(TEST_ADDRESS));
+
+        Path recordingFile = Files.createTempFile("mail-signer", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(MailPhaseEvent.AliasResolution.class);
+            recording.start();
+            assertFalse(mailSigner.signMessage(message).isPresent());
+            recording.stop();
+            recording.dump(recordingFile);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile);
+            assertEquals(1, events.size());
+            assertEquals(MailPhaseEvent.NOT_FOUND, events.get(0).getString("outcome"));
+        } finally {
+            Files.deleteIfExists(recordingFile);
+        }
+    }
+
+    @Test
+    @DisplayName("Test that each phase of a successful signing is recorded with its alias, outcome and size")
+    public void testSigningPhaseEvents() throws Exception {
+        mailSigner = new MailSigner(properties, createKeyStore(KEYSTORE_PASSWORD, TEST_ADDRESS));
+
+        Path recordingFile = Files.createTempFile("mail-signer", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(MailPhaseEvent.AliasResolution.class);
+            recording.enable(MailPhaseEvent.KeyUnlock.class);
+            recording.enable(MailPhaseEvent.ContentMaterialization.class);
+            recording.enable(MailPhaseEvent.SignatureGeneration.class);
+            recording.enable(MailPhaseEvent.HeaderCopy.class);
+            recording.start();
+            assertTrue(mailSigner.signMessage(createMessage()).isPresent());
+            recording.stop();
+            recording.dump(recordingFile);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile);
+            assertEquals(Arrays.asList("edu.iu.uits.mail.AliasResolution", "edu.iu.uits.mail.KeyUnlock", "edu.iu.uits.mail.ContentMaterialization",
+                    "edu.iu.uits.mail.SignatureGeneration", "edu.iu.uits.mail.HeaderCopy"),
+                    events.stream().sorted(Comparator.comparing(RecordedEvent::getStartTime))
+                            .map(event -> event.getEventType().getName()).collect(Collectors.toList()));
+            for (RecordedEvent event : events) {
+                assertEquals(TEST_ADDRESS, event.getString("alias"));
+                assertEquals(MailPhaseEvent.SUCCESS, event.getString("outcome"));
+                assertTrue(event.getLong("messageSize") > 0);
+            }
+        } finally {
+            Files.deleteIfExists(recordingFile);
+        }
+    }
+
+    @Test
+    @DisplayName("Test that the from address is the signing alias when no aliases are configured")
+    public void testGetSigningAliasesDefault() throws Exception {
+        mailSigner = new MailSigner(properties, createKeyStore(KEYSTORE_PASSWORD, TEST_ADDRESS));
+        assertEquals(Collections.singletonList(TEST_ADDRESS), mailSigner.getSigningAliases(TEST_ADDRESS));
+        assertTrue(mailSigner.getSigningAliases("other@bar.baz").isEmpty());
+    }
+
+    @Test
+    @DisplayName("Test that configured signing aliases are used, skipping any missing from the keystore")
+    public void testGetSigningAliasesConfigured() throws Exception {
+        properties.setProperty(String.format(MailSigner.SIGNING_ALIASES_PROPERTY_TEMPLATE, TEST_ADDRESS_LOCAL_PART), "foo-rsa, foo-missing, foo-ec");
+        mailSigner = new MailSigner(properties, createKeyStore(KEYSTORE_PASSWORD, "foo-rsa", "foo-ec"));
+        assertEquals(Arrays.asList("foo-rsa", "foo-ec"), mailSigner.getSigningAliases(TEST_ADDRESS));
+    }
+
+    @Test
+    @DisplayName("Test that a message signed by several aliases has a valid SignerInfo for each")
+    public void testSignMessageMultipleSigners() throws Exception {
+        properties.setProperty(String.format(MailSigner.SIGNING_ALIASES_PROPERTY_TEMPLATE, TEST_ADDRESS), "foo-rsa,foo-ec");
+        KeyStore signingKeyStore = createKeyStore(KEYSTORE_PASSWORD, "foo-rsa", "foo-ec");
+        mailSigner = new MailSigner(properties, signingKeyStore);
+
+        SMIMESigned signed = sendAndParse(mailSigner.signMessage(createMessage()).get());
+
+        Collection<SignerInformation> signerInfos = signed.getSignerInfos().getSigners();
+        assertEquals(2, signerInfos.size());
+        assertEquals(2, signed.getDigestAlgorithmIDs().size());
+        assertEquals(OIWObjectIdentifiers.idSHA1.getId(), verifySigner(signed, signingKeyStore, "foo-rsa").getDigestAlgOID());
+        assertEquals(NISTObjectIdentifiers.id_sha256.getId(), verifySigner(signed, signingKeyStore, "foo-ec").getDigestAlgOID());
+        assertEquals("content", signed.getContent().getContent());
+    }
+
+    @Test
+    @DisplayName("Test that a configured digest algorithm is shared by every signer")
+    public void testSignMessageConfiguredDigest() throws Exception {
+        properties.setProperty(String.format(MailSigner.SIGNING_ALIASES_PROPERTY_TEMPLATE, TEST_ADDRESS), "foo-rsa,foo-ec");
+        properties.setProperty(MailSigner.DIGEST_ALGORITHM_PROPERTY, "SHA-256");
+        KeyStore signingKeyStore = createKeyStore(KEYSTORE_PASSWORD, "foo-rsa", "foo-ec");
+        mailSigner = new MailSigner(properties, signingKeyStore);
+
+        SMIMESigned signed = sendAndParse(mailSigner.signMessage(createMessage()).get());
+
+        assertEquals(1, signed.getDigestAlgorithmIDs().size());
+        for (String alias : Arrays.asList("foo-rsa", "foo-ec")) {
+            assertEquals(NISTObjectIdentifiers.id_sha256.getId(), verifySigner(signed, signingKeyStore, alias).getDigestAlgOID());
+        }
+    }
+
+    @Test
+    @DisplayName("Test that a message signed by a single alias has a valid signature")
+    public void testSignMessageSingleSigner() throws Exception {
+        KeyStore signingKeyStore = createKeyStore(KEYSTORE_PASSWORD, TEST_ADDRESS);
+        mailSigner = new MailSigner(properties, signingKeyStore);
+
+        SMIMESigned signed = sendAndParse(mailSigner.signMessage(createMessage()).get());
+
+        SignerInformation signerInfo = signed.getSignerInfos().getSigners().iterator().next();
+        assertTrue(signerInfo.verify(new JcaSimpleSignerInfoVerifierBuilder().build((X509Certificate) signingKeyStore.getCertificate(TEST_ADDRESS))));
+    }
+
+    @Test
+    @DisplayName("Test that signing with no signers is rejected")
+    public void testSignMessageNoSigners() throws Exception {
+        MimeMessage message = createMessage();
+        assertThrows(IllegalArgumentException.class, () -> MailSigner.signMessage(message, Collections.emptyList()));
+    }
+
+    @Test
+    @DisplayName("Test that a signer whose certificate is not an X.509 certificate is rejected")
+    public void testSignMessageNonX509Certificate() throws Exception {
+        KeyStore signingKeyStore = createKeyStore(KEYSTORE_PASSWORD, TEST_ADDRESS);
+        PrivateKey privateKey = (PrivateKey) signingKeyStore.getKey(TEST_ADDRESS, KEYSTORE_PASSWORD.toCharArray());
+        PublicKey publicKey = signingKeyStore.getCertificate(TEST_ADDRESS).getPublicKey();
+        Certificate certificate = new Certificate("PGP") {
+            @Override
+            public byte[] getEncoded() {
+                return new byte[0];
+            }
+
+            @Override
+            public void verify(PublicKey key) {
+            }
+
+            @Override
+            public void verify(PublicKey key, String sigProvider) {
+            }
+
+            @Override
+            public String toString() {
+                return "PGP certificate";
+            }
+
+            @Override
+            public PublicKey getPublicKey() {
+                return publicKey;
+            }
+        };
+        MimeMessage message = createMessage();
+
+        assertThrows(IllegalArgumentException.class, () -> MailSigner.signMessage(message,
+                Collections.singletonList(new KeyStore.PrivateKeyEntry(privateKey, new Certificate[]{certificate}))));
+    }
+
+    @Test
+    @DisplayName("Test that the size recorded for a message with several signers is the size of the final signed content")
+    public void testSigningEventSizeMultipleSigners() throws Exception {
+        properties.setProperty(String.format(MailSigner.SIGNING_ALIASES_PROPERTY_TEMPLATE, TEST_ADDRESS), "foo-rsa,foo-ec");
+        mailSigner = new MailSigner(properties, createKeyStore(KEYSTORE_PASSWORD, "foo-rsa", "foo-ec"));
+
+        Path recordingFile = Files.createTempFile("mail-signer", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.start();
+            MimeMessage signedMessage = mailSigner.signMessage(createMessage()).get();
+            recording.stop();
+            recording.dump(recordingFile);
+
+            ByteArrayOutputStream signedContent = new ByteArrayOutputStream();
+            ((MimeMultipart) signedMessage.getContent()).writeTo(signedContent);
+            List<RecordedEvent> events = RecordingFile.readAllEvents(recordingFile).stream()
+                    .filter(event -> event.getEventType().getName().equals("edu.iu.uits.mail.SignatureGeneration")).collect(Collectors.toList());
+            assertEquals(1, events.size());
+            assertEquals(signedContent.size(), events.get(0).getLong("messageSize"));
+        } finally {
+            Files.deleteIfExists(recordingFile);
+        }
+    }
+
+    private SignerInformation verifySigner(SMIMESigned signed, KeyStore signingKeyStore, String alias) throws Exception {
+        X509Certificate certificate = (X509Certificate) signingKeyStore.getCertificate(alias);
+        SignerInformation signerInfo = signed.getSignerInfos().getSigners().stream()
+                .filter(signer -> signer.getSID().getSerialNumber().equals(certificate.getSerialNumber())).findFirst().get();
+        assertTrue(signerInfo.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate)));
+        return signerInfo;
+    }
+
+    private MimeMessage createMessage() throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getInstance(properties));
+        message.setFrom(new InternetAddress(TEST_ADDRESS));
+        message.setSubject("Testing signed email");
+        message.setText("content");
+        message.saveChanges();
+        return message;
+    }
+
+    private SMIMESigned sendAndParse(MimeMessage signedMessage) throws Exception {
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        signedMessage.writeTo(sent);
+        MimeMessage received = new MimeMessage(Session.getInstance(properties), new ByteArrayInputStream(sent.toByteArray()));
+        return new SMIMESigned((MimeMultipart) received.getContent());
+    }
+
+    /**
+     * Creates a keystore with a self-signed certificate for each alias, alternating between RSA and EC keys.
+     */
+    static KeyStore createKeyStore(String password, String... aliases) throws Exception {
+        KeyStore signingKeyStore = KeyStore.getInstance("JKS");
+        signingKeyStore.load(null, null);
+        for (int i = 0; i < aliases.length; i++) {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(i % 2 == 0 ? "RSA" : "EC");
+            generator.initialize(i % 2 == 0 ? 2048 : 256);
+            KeyPair keyPair = generator.generateKeyPair();
+            X500Name name = new X500Name("CN=" + aliases[i]);
+            X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(
+                    name, BigInteger.valueOf(i + 1), new Date(System.currentTimeMillis() - 60000), new Date(System.currentTimeMillis() + 3600000),
+                    name, keyPair.getPublic()).build(new JcaContentSignerBuilder(i % 2 == 0 ? "SHA256withRSA" : "SHA256withECDSA").build(keyPair.getPrivate())));
+            signingKeyStore.setKeyEntry(aliases[i], keyPair.getPrivate(), password.toCharArray(), new Certificate[]{certificate});
+        }
+        return signingKeyStore;
+    }
 }
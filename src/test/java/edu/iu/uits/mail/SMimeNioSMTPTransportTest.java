@@ -0,0 +1,631 @@
+package edu.iu.uits.mail;
+
+/*-
+ * #%L
+ * JavaMail S/MIME Transport
+ * %%
+ * Copyright (C) 2018 Indiana University - UITS
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Indiana University - UITS nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.event.TransportAdapter;
+import javax.mail.event.TransportEvent;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SMimeNioSMTPTransportTest {
+
+    private static final String KEYSTORE_PASSWORD = "k3yst0r3p@ssw0rd";
+
+    private GreenMail greenMail;
+    private Properties properties;
+    private Session session;
+
+    @BeforeEach
+    public void setup() {
+        greenMail = new GreenMail(ServerSetupTest.SMTP);
+        greenMail.start();
+
+        properties = new Properties();
+        properties.setProperty("mail.transport.protocol", SMimeNioSMTPTransport.PROTOCOL);
+        properties.setProperty("mail.smtp+smime+nio.host", "localhost");
+        properties.setProperty("mail.smtp+smime+nio.port", String.valueOf(ServerSetupTest.SMTP.getPort()));
+        properties.setProperty("mail.smtp+smime+nio.timeout", "10000");
+        session = Session.getInstance(properties);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        greenMail.stop();
+    }
+
+    @Test
+    @DisplayName("Test that lines are CRLF terminated, dot-stuffed and followed by the end-of-data marker")
+    public void testToDataSection() {
+        byte[] data = NioSMTPMessage.toDataSection("Subject: test\n\n.hidden\r\nlast".getBytes(StandardCharsets.US_ASCII));
+        assertArrayEquals("Subject: test\r\n\r\n..hidden\r\nlast\r\n.\r\n".getBytes(StandardCharsets.US_ASCII), data);
+    }
+
+    @Test
+    @DisplayName("Test that many messages sent concurrently through one transport are all delivered")
+    public void testConcurrentDelivery() throws MessagingException {
+        SMimeNioSMTPTransport transport = (SMimeNioSMTPTransport) session.getTransport();
+        transport.connect();
+        try {
+            List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+            for (int i = 0; i < 25; i++) {
+                MimeMessage message = new MimeMessage(session);
+                message.setFrom(new InternetAddress("foo@example.com"));
+                message.addRecipient(Message.RecipientType.TO, new InternetAddress("bar" + i + "@example.com"));
+                message.setSubject("Testing non-blocking delivery " + i);
+                message.setText("content\n.\nmore content");
+                message.saveChanges();
+                deliveries.add(transport.sendMessageAsync(message, message.getAllRecipients()));
+            }
+            CompletableFuture.allOf(deliveries.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new AssertionError("Delivery failed", e);
+        } finally {
+            transport.close();
+        }
+
+        assertTrue(greenMail.waitForIncomingEmail(10000, 25));
+        assertEquals(25, greenMail.getReceivedMessages().length);
+    }
+
+    @Test
+    @DisplayName("Test that a message from an address with a certificate is delivered signed")
+    public void testSignedDelivery(@TempDir Path tempDir) throws Exception {
+        Path keyStoreFile = tempDir.resolve("keystore.jks");
+        try (OutputStream out = Files.newOutputStream(keyStoreFile)) {
+            MailSignerTest.createKeyStore(KEYSTORE_PASSWORD, "foo@example.com").store(out, KEYSTORE_PASSWORD.toCharArray());
+        }
+        properties.setProperty("mail.keystore.file", keyStoreFile.toString());
+        properties.setProperty("mail.keystore.password", KEYSTORE_PASSWORD);
+        session = Session.getInstance(properties);
+
+        send(createMessage());
+
+        assertTrue(greenMail.waitForIncomingEmail(10000, 1));
+        assertTrue(greenMail.getReceivedMessages()[0].getContentType().startsWith("multipart/signed"));
+    }
+
+    @Test
+    @DisplayName("Test delivery to a relay which upgrades the connection with STARTTLS")
+    public void testStartTlsDelivery() throws Exception {
+        try (TlsRelay relay = new TlsRelay(false)) {
+            properties.setProperty("mail.smtp+smime+nio.port", String.valueOf(relay.getPort()));
+            properties.setProperty("mail.smtp+smime+nio.starttls.enable", "true");
+            properties.setProperty("mail.smtp+smime+nio.starttls.required", "true");
+            properties.setProperty("mail.smtp+smime+nio.ssl.trust", "*");
+            session = Session.getInstance(properties);
+
+            send(createMessage());
+
+            assertTrue(relay.getReceived().contains("Subject: Testing TLS delivery"));
+            assertTrue(relay.isTlsUsed());
+        }
+    }
+
+    @Test
+    @DisplayName("Test delivery to a relay which expects TLS from the start of the connection")
+    public void testImplicitTlsDelivery() throws Exception {
+        try (TlsRelay relay = new TlsRelay(true)) {
+            properties.setProperty("mail.smtp+smime+nio.port", String.valueOf(relay.getPort()));
+            properties.setProperty("mail.smtp+smime+nio.ssl.enable", "true");
+            properties.setProperty("mail.smtp+smime+nio.ssl.trust", "*");
+            session = Session.getInstance(properties);
+
+            send(createMessage());
+
+            assertTrue(relay.getReceived().contains("Subject: Testing TLS delivery"));
+            assertTrue(relay.isTlsUsed());
+        }
+    }
+
+    @Test
+    @DisplayName("Test that no more than the configured number of connections are opened and they are reused")
+    public void testConnectionPool() throws Exception {
+        try (TlsRelay relay = new TlsRelay(false)) {
+            useRelay(relay);
+            properties.setProperty("mail.smtp+smime+nio.maxconnections", "2");
+            session = Session.getInstance(properties);
+
+            SMimeNioSMTPTransport transport = (SMimeNioSMTPTransport) session.getTransport();
+            transport.connect();
+            try {
+                List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+                for (int i = 0; i < 20; i++) {
+                    MimeMessage message = createMessage();
+                    deliveries.add(transport.sendMessageAsync(message, message.getAllRecipients()));
+                }
+                CompletableFuture.allOf(deliveries.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+            } finally {
+                transport.close();
+            }
+
+            for (int i = 0; i < 20; i++) {
+                relay.getReceived();
+            }
+            assertTrue(relay.getConnections() <= 2);
+            assertTrue(relay.getMaxOpenConnections() <= 2);
+            assertTrue(relay.getCommands().contains("RSET"));
+        }
+    }
+
+    @Test
+    @DisplayName("Test that shutting down the shared engine does not break later sends")
+    public void testSharedEngineShutdown() throws Exception {
+        NioSMTPEngine engine = NioSMTPEngine.getSharedEngine(properties);
+        engine.shutdown();
+        assertNotSame(engine, NioSMTPEngine.getSharedEngine(properties));
+
+        send(createMessage());
+
+        assertTrue(greenMail.waitForIncomingEmail(10000, 1));
+    }
+
+    @Test
+    @DisplayName("Test that HELO is used when the relay refuses EHLO")
+    public void testHeloFallback() throws Exception {
+        try (TlsRelay relay = new TlsRelay(false).reply("EHLO", "502 Command not implemented")) {
+            useRelay(relay);
+
+            send(createMessage());
+
+            assertTrue(relay.getReceived().contains("Subject: Testing TLS delivery"));
+            assertTrue(relay.getCommands().stream().anyMatch(command -> command.startsWith("HELO")));
+        }
+    }
+
+    @Test
+    @DisplayName("Test that a refused greeting fails the delivery with the relay's reply code")
+    public void testGreetingRefused() throws Exception {
+        try (TlsRelay relay = new TlsRelay(false).greeting("421 Too busy, try again later")) {
+            useRelay(relay);
+
+            SMTPSendFailedException e = assertThrows(SMTPSendFailedException.class, () -> send(createMessage()));
+            assertEquals(421, e.getReturnCode());
+        }
+    }
+
+    @Test
+    @DisplayName("Test that a refused DATA fails the message but keeps the connection for the next one")
+    public void testDataRefused() throws Exception {
+        try (TlsRelay relay = new TlsRelay(false).reply("DATA", "554 Transaction failed")) {
+            useRelay(relay);
+
+            SMTPSendFailedException e = assertThrows(SMTPSendFailedException.class, () -> send(createMessage()));
+            assertEquals(554, e.getReturnCode());
+
+            relay.clearReplies();
+            send(createMessage());
+            assertTrue(relay.getReceived().contains("Subject: Testing TLS delivery"));
+            assertEquals(1, relay.getConnections());
+            assertTrue(relay.getCommands().contains("RSET"));
+        }
+    }
+
+    @Test
+    @DisplayName("Test that a rejected recipient fails the whole message unless partial sends are allowed")
+    public void testRecipientRejected() throws Exception {
+        try (TlsRelay relay = new TlsRelay(false).reply("RCPT TO:<BAD@", "550 No such user")) {
+            useRelay(relay);
+            MimeMessage message = createMessage();
+            message.addRecipient(Message.RecipientType.TO, new InternetAddress("bad@example.com"));
+            CompletableFuture<TransportEvent> event = new CompletableFuture<>();
+
+            SendFailedException e = sendFailing(message, event);
+
+            assertArrayEquals(new Address[]{new InternetAddress("bar@example.com")}, e.getValidUnsentAddresses());
+            assertArrayEquals(new Address[]{new InternetAddress("bad@example.com")}, e.getInvalidAddresses());
+            assertEquals(550, ((SMTPAddressFailedException) e.getNextException()).getReturnCode());
+            TransportEvent transportEvent = event.get(10, TimeUnit.SECONDS);
+            assertEquals(TransportEvent.MESSAGE_NOT_DELIVERED, transportEvent.getType());
+            assertArrayEquals(new Address[]{new InternetAddress("bad@example.com")}, transportEvent.getInvalidAddresses());
+            assertFalse(relay.getCommands().contains("DATA"));
+        }
+    }
+
+    @Test
+    @DisplayName("Test that a message is sent to the remaining recipients when partial sends are allowed")
+    public void testRecipientRejectedSendPartial() throws Exception {
+        try (TlsRelay relay = new TlsRelay(false).reply("RCPT TO:<BAD@", "550 No such user")) {
+            useRelay(relay);
+            properties.setProperty("mail.smtp+smime+nio.sendpartial", "true");
+            session = Session.getInstance(properties);
+            MimeMessage message = createMessage();
+            message.addRecipient(Message.RecipientType.TO, new InternetAddress("bad@example.com"));
+            CompletableFuture<TransportEvent> event = new CompletableFuture<>();
+
+            SendFailedException e = sendFailing(message, event);
+
+            assertArrayEquals(new Address[]{new InternetAddress("bar@example.com")}, e.getValidSentAddresses());
+            assertArrayEquals(new Address[]{new InternetAddress("bad@example.com")}, e.getInvalidAddresses());
+            assertTrue(relay.getReceived().contains("Subject: Testing TLS delivery"));
+            TransportEvent transportEvent = event.get(10, TimeUnit.SECONDS);
+            assertEquals(TransportEvent.MESSAGE_PARTIALLY_DELIVERED, transportEvent.getType());
+            assertArrayEquals(new Address[]{new InternetAddress("bar@example.com")}, transportEvent.getValidSentAddresses());
+            assertArrayEquals(new Address[]{new InternetAddress("bad@example.com")}, transportEvent.getInvalidAddresses());
+        }
+    }
+
+    @Test
+    @DisplayName("Test that a relay which stops responding fails the delivery once the timeout passes")
+    public void testTimeout() throws Exception {
+        try (TlsRelay relay = new TlsRelay(false).reply("DATA", null)) {
+            useRelay(relay);
+            properties.setProperty("mail.smtp+smime+nio.timeout", "500");
+            session = Session.getInstance(properties);
+
+            MessagingException e = assertThrows(MessagingException.class, () -> send(createMessage()));
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+    }
+
+    @Test
+    @DisplayName("Test that a relay answering 421 slows down the relay's send rate")
+    public void testRelayThrottled() throws Exception {
+        try (TlsRelay relay = new TlsRelay(false).reply("MAIL FROM", "421 Too busy, try again later")) {
+            properties.setProperty(SendRateLimiter.RELAY_RATE_PROPERTY, "10");
+            useRelay(relay);
+            SendRateLimiter sendRateLimiter = new SendRateLimiter(properties);
+            String relayName = SendRateLimiter.getRelay("localhost", relay.getPort());
+
+            SMTPSendFailedException e = assertThrows(SMTPSendFailedException.class, () -> send(createMessage()));
+
+            assertEquals(421, e.getReturnCode());
+            assertTrue(sendRateLimiter.getRelayRate(relayName) < 10);
+        }
+    }
+
+    @Test
+    @DisplayName("Test that an asynchronous send over the rate limit fails straight away")
+    public void testAsyncRateLimited() throws Exception {
+        try (TlsRelay relay = new TlsRelay(false)) {
+            properties.setProperty(SendRateLimiter.RELAY_RATE_PROPERTY, "0.01");
+            properties.setProperty(SendRateLimiter.RELAY_BURST_PROPERTY, "1");
+            useRelay(relay);
+
+            SMimeNioSMTPTransport transport = (SMimeNioSMTPTransport) session.getTransport();
+            transport.connect();
+            try {
+                MimeMessage message = createMessage();
+                transport.sendMessageAsync(message, message.getAllRecipients()).get(10, TimeUnit.SECONDS);
+
+                CompletableFuture<Void> limited = transport.sendMessageAsync(message, message.getAllRecipients());
+                ExecutionException e = assertThrows(ExecutionException.class, () -> limited.get(10, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof SendRateLimitedException);
+            } finally {
+                transport.close();
+            }
+            assertEquals(1, relay.getCommands().stream().filter(command -> command.equals("DATA")).count());
+        }
+    }
+
+    @Test
+    @DisplayName("Test that a delivery slower than the latency target slows down the relay's send rate")
+    public void testSlowDelivery() throws Exception {
+        try (TlsRelay relay = new TlsRelay(false).delay(500)) {
+            properties.setProperty(SendRateLimiter.RELAY_RATE_PROPERTY, "10");
+            properties.setProperty(SendRateLimiter.LATENCY_TARGET_PROPERTY, "100");
+            useRelay(relay);
+            SendRateLimiter sendRateLimiter = new SendRateLimiter(properties);
+            String relayName = SendRateLimiter.getRelay("localhost", relay.getPort());
+
+            send(createMessage());
+
+            assertTrue(relay.getReceived().contains("Subject: Testing TLS delivery"));
+            assertTrue(sendRateLimiter.getRelayRate(relayName) < 10);
+        }
+    }
+
+    private void useRelay(TlsRelay relay) {
+        properties.setProperty("mail.smtp+smime+nio.port", String.valueOf(relay.getPort()));
+        session = Session.getInstance(properties);
+    }
+
+    private SendFailedException sendFailing(MimeMessage message, CompletableFuture<TransportEvent> event) throws Exception {
+        Transport transport = session.getTransport();
+        transport.addTransportListener(new TransportAdapter() {
+            @Override
+            public void messageNotDelivered(TransportEvent e) {
+                event.complete(e);
+            }
+
+            @Override
+            public void messagePartiallyDelivered(TransportEvent e) {
+                event.complete(e);
+            }
+        });
+        transport.connect();
+        try {
+            SendFailedException e = assertThrows(SendFailedException.class, () -> transport.sendMessage(message, message.getAllRecipients()));
+            // closing the transport stops JavaMail dispatching its events, so wait for the event first
+            event.get(10, TimeUnit.SECONDS);
+            return e;
+        } finally {
+            transport.close();
+        }
+    }
+
+    private void send(MimeMessage message) throws MessagingException {
+        // Transport.send picks the transport mapped to the address type, so connect the configured one directly
+        Transport transport = session.getTransport();
+        transport.connect();
+        try {
+            transport.sendMessage(message, message.getAllRecipients());
+        } finally {
+            transport.close();
+        }
+    }
+
+    private MimeMessage createMessage() throws MessagingException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("foo@example.com"));
+        message.addRecipient(Message.RecipientType.TO, new InternetAddress("bar@example.com"));
+        message.setSubject("Testing TLS delivery");
+        message.setText("content");
+        message.saveChanges();
+        return message;
+    }
+
+    /**
+     * A relay speaking just enough SMTP to accept messages, optionally over STARTTLS or implicit TLS, whose replies
+     * to particular commands can be scripted to exercise the error paths.
+     */
+    private static class TlsRelay implements Runnable, AutoCloseable {
+
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final SSLContext sslContext = SSLContext.getInstance("TLS");
+        private final boolean implicitTls;
+        private final Map<String, Optional<String>> replies = new ConcurrentHashMap<>();
+        private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        private final List<String> commands = new CopyOnWriteArrayList<>();
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger openConnections = new AtomicInteger();
+        private final AtomicInteger maxOpenConnections = new AtomicInteger();
+        private volatile String greeting = "220 localhost ESMTP";
+        private volatile long delayMillis;
+        private volatile boolean tlsUsed;
+
+        TlsRelay(boolean implicitTls) throws Exception {
+            this.implicitTls = implicitTls;
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(MailSignerTest.createKeyStore(KEYSTORE_PASSWORD, "localhost"), KEYSTORE_PASSWORD.toCharArray());
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            Thread thread = new Thread(this, "tls-relay");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        /**
+         * Answers commands starting with the prefix with the given reply, or not at all if it is null.  A 421 reply
+         * also closes the connection.
+         */
+        TlsRelay reply(String commandPrefix, String reply) {
+            replies.put(commandPrefix.toUpperCase(Locale.ENGLISH), Optional.ofNullable(reply));
+            return this;
+        }
+
+        void clearReplies() {
+            replies.clear();
+        }
+
+        /**
+         * Waits before accepting each message, to look like a relay under load.
+         */
+        TlsRelay delay(long millis) {
+            this.delayMillis = millis;
+            return this;
+        }
+
+        TlsRelay greeting(String greeting) {
+            this.greeting = greeting;
+            return this;
+        }
+
+        String getReceived() throws InterruptedException {
+            String data = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull(data, "No message received");
+            return data;
+        }
+
+        List<String> getCommands() {
+            return commands;
+        }
+
+        int getConnections() {
+            return connections.get();
+        }
+
+        int getMaxOpenConnections() {
+            return maxOpenConnections.get();
+        }
+
+        boolean isTlsUsed() {
+            return tlsUsed;
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket connection = serverSocket.accept();
+                    connections.incrementAndGet();
+                    maxOpenConnections.accumulateAndGet(openConnections.incrementAndGet(), Math::max);
+                    Thread thread = new Thread(() -> converse(connection), "tls-relay-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void converse(Socket connection) {
+            try (Socket closing = connection) {
+                Socket socket = implicitTls ? startTls(connection) : connection;
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                write(socket, greeting);
+                if (greeting.startsWith("421")) {
+                    return;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String command = line.toUpperCase(Locale.ENGLISH);
+                    commands.add(command);
+                    Optional<String> scripted = getScriptedReply(command);
+                    if (scripted != null) {
+                        if (scripted.isPresent()) {
+                            write(socket, scripted.get());
+                            if (scripted.get().startsWith("421")) {
+                                return;
+                            }
+                        }
+                    } else if (command.startsWith("EHLO")) {
+                        write(socket, tlsUsed ? "250 localhost" : "250-localhost\r\n250 STARTTLS");
+                    } else if (command.startsWith("HELO")) {
+                        write(socket, "250 localhost");
+                    } else if (command.equals("STARTTLS")) {
+                        write(socket, "220 Ready to start TLS");
+                        socket = startTls(socket);
+                        reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+                    } else if (command.startsWith("MAIL FROM:") || command.startsWith("RCPT TO:") || command.equals("RSET")) {
+                        write(socket, "250 OK");
+                    } else if (command.equals("DATA")) {
+                        write(socket, "354 End data with <CR><LF>.<CR><LF>");
+                        StringBuilder data = new StringBuilder();
+                        while (!(line = reader.readLine()).equals(".")) {
+                            data.append(line).append("\n");
+                        }
+                        sleep(delayMillis);
+                        write(socket, "250 OK");
+                        received.add(data.toString());
+                    } else if (command.equals("QUIT")) {
+                        write(socket, "221 Bye");
+                        break;
+                    } else {
+                        write(socket, "500 Unrecognised command");
+                    }
+                }
+            } catch (IOException e) {
+                // the client went away
+            } finally {
+                openConnections.decrementAndGet();
+            }
+        }
+
+        private Optional<String> getScriptedReply(String command) {
+            return replies.entrySet().stream().filter(reply -> command.startsWith(reply.getKey()))
+                    .map(Map.Entry::getValue).findFirst().orElse(null);
+        }
+
+        private Socket startTls(Socket socket) throws IOException {
+            SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket, "localhost", socket.getPort(), true);
+            sslSocket.setUseClientMode(false);
+            sslSocket.startHandshake();
+            tlsUsed = true;
+            return sslSocket;
+        }
+
+        private static void sleep(long millis) throws IOException {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+        }
+
+        private static void write(Socket socket, String response) throws IOException {
+            socket.getOutputStream().write((response + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            socket.getOutputStream().flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package edu.iu.uits.mail;
+
+/*-
+ * #%L
+ * JavaMail S/MIME Transport
+ * %%
+ * Copyright (C) 2018 Indiana University - UITS
+ * %%
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ * 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * 3. Neither the name of the Indiana University - UITS nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SendRateLimiterTest {
+
+    private Properties properties;
+    private MimeMessage message;
+
+    @BeforeEach
+    public void setup() throws MessagingException {
+        properties = new Properties();
+        message = new MimeMessage(Session.getInstance(properties));
+        message.setFrom(new InternetAddress("foo@bar.baz"));
+    }
+
+    @Test
+    @DisplayName("Test that no limits are applied when no rates are configured")
+    public void testUnlimitedByDefault() throws MessagingException {
+        SendRateLimiter sendRateLimiter = new SendRateLimiter(properties);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(sendRateLimiter.tryAcquire("unlimited:25", message).isPresent());
+        }
+    }
+
+    @Test
+    @DisplayName("Test that the relay burst is enforced and the maximum wait fails the send")
+    public void testRelayBurst() throws MessagingException {
+        properties.setProperty(SendRateLimiter.RELAY_RATE_PROPERTY, "0.01");
+        properties.setProperty(SendRateLimiter.RELAY_BURST_PROPERTY, "2");
+        properties.setProperty(SendRateLimiter.MAX_WAIT_PROPERTY, "0");
+        SendRateLimiter sendRateLimiter = new SendRateLimiter(properties);
+
+        assertTrue(sendRateLimiter.tryAcquire("burst:25", message).isPresent());
+        sendRateLimiter.acquire("burst:25", message);
+        assertFalse(sendRateLimiter.tryAcquire("burst:25", message).isPresent());
+        assertThrows(SendRateLimitedException.class, () -> sendRateLimiter.acquire("burst:25", message));
+        // other relays have their own bucket
+        assertTrue(sendRateLimiter.tryAcquire("other:25", message).isPresent());
+    }
+
+    @Test
+    @DisplayName("Test that a sender over its limit does not use up the relay's limit")
+    public void testSenderLimitReturnsRelayToken() throws MessagingException {
+        properties.setProperty(SendRateLimiter.RELAY_RATE_PROPERTY, "0.01");
+        properties.setProperty(SendRateLimiter.RELAY_BURST_PROPERTY, "2");
+        properties.setProperty(SendRateLimiter.SENDER_RATE_PROPERTY, "0.01");
+        properties.setProperty(SendRateLimiter.SENDER_BURST_PROPERTY, "1");
+        SendRateLimiter sendRateLimiter = new SendRateLimiter(properties);
+        message.setFrom(new InternetAddress("limited@bar.baz"));
+
+        assertTrue(sendRateLimiter.tryAcquire("sender:25", message).isPresent());
+        assertFalse(sendRateLimiter.tryAcquire("sender:25", message).isPresent());
+
+        message.setFrom(new InternetAddress("other@bar.baz"));
+        assertTrue(sendRateLimiter.tryAcquire("sender:25", message).isPresent());
+    }
+
+    @Test
+    @DisplayName("Test that limiters configured differently do not share a relay's bucket")
+    public void testBucketsScopedToConfiguration() throws MessagingException {
+        properties.setProperty(SendRateLimiter.RELAY_RATE_PROPERTY, "0.01");
+        properties.setProperty(SendRateLimiter.RELAY_BURST_PROPERTY, "1");
+        SendRateLimiter strictLimiter = new SendRateLimiter(properties);
+        properties.setProperty(SendRateLimiter.RELAY_BURST_PROPERTY, "3");
+        SendRateLimiter lenientLimiter = new SendRateLimiter(properties);
+
+        assertTrue(strictLimiter.tryAcquire("scoped:25", message).isPresent());
+        assertFalse(strictLimiter.tryAcquire("scoped:25", message).isPresent());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(lenientLimiter.tryAcquire("scoped:25", message).isPresent());
+        }
+        // a new limiter with the same settings shares the bucket
+        assertFalse(new SendRateLimiter(properties).tryAcquire("scoped:25", message).isPresent());
+    }
+
+    @Test
+    @DisplayName("Test that idle sender buckets are discarded")
+    public void testIdleSenderBucketsEvicted() throws MessagingException {
+        properties.setProperty(SendRateLimiter.SENDER_RATE_PROPERTY, "0.01");
+        properties.setProperty(SendRateLimiter.SENDER_BURST_PROPERTY, "1");
+        SendRateLimiter sendRateLimiter = new SendRateLimiter(properties);
+        message.setFrom(new InternetAddress("idle@bar.baz"));
+
+        assertTrue(sendRateLimiter.tryAcquire("idle:25", message).isPresent());
+        assertFalse(sendRateLimiter.tryAcquire("idle:25", message).isPresent());
+        SendRateLimiter.evictIdleSenderBuckets(TimeUnit.MINUTES.toNanos(SendRateLimiter.SENDER_IDLE_MINUTES));
+        assertFalse(sendRateLimiter.tryAcquire("idle:25", message).isPresent());
+
+        SendRateLimiter.evictIdleSenderBuckets(0);
+        assertEquals(0, SendRateLimiter.getSenderBucketCount());
+        assertTrue(sendRateLimiter.tryAcquire("idle:25", message).isPresent());
+    }
+
+    @Test
+    @DisplayName("Test that the blocking transports key the relay by the port they connect to")
+    public void testRelayDefaultPort() {
+        Session session = Session.getInstance(properties);
+        assertEquals("mail.example.org:25", SendRateLimiter.getRelay(session, new URLName("smtp+smime", "Mail.Example.org", -1, null, null, null), false));
+        assertEquals("mail.example.org:465", SendRateLimiter.getRelay(session, new URLName("smtps+smime", "mail.example.org", -1, null, null, null), true));
+        assertEquals("mail.example.org:587", SendRateLimiter.getRelay(session, new URLName("smtp+smime", "mail.example.org", 587, null, null, null), false));
+        properties.setProperty("mail.smtp+smime.ssl.enable", "true");
+        assertEquals("mail.example.org:465", SendRateLimiter.getRelay(session, new URLName("smtp+smime", "mail.example.org", -1, null, null, null), false));
+        properties.setProperty("mail.smtp+smime.port", "2525");
+        assertEquals("mail.example.org:2525", SendRateLimiter.getRelay(session, new URLName("smtp+smime", "mail.example.org", -1, null, null, null), false));
+    }
+
+    @Test
+    @DisplayName("Test that the rate backs off on 421 and 451 responses and recovers on success")
+    public void testAdaptiveRate() {
+        TokenBucket bucket = new TokenBucket(10, 10);
+        bucket.onThrottled();
+        assertEquals(5, bucket.getRate(), 0.001);
+        bucket.onSuccess();
+        assertEquals(5.5, bucket.getRate(), 0.001);
+        for (int i = 0; i < 100; i++) {
+            bucket.onThrottled();
+        }
+        assertEquals(0.5, bucket.getRate(), 0.001);
+        for (int i = 0; i < 100; i++) {
+            bucket.onSuccess();
+        }
+        assertEquals(10, bucket.getRate(), 0.001);
+    }
+
+    @Test
+    @DisplayName("Test that only transient relay refusals are treated as throttling")
+    public void testReturnCode() {
+        assertEquals(421, SendRateLimiter.getReturnCode(new SMTPSendFailedException("MAIL FROM:<foo@bar.baz>", 421, "421 Too many connections", null, null, null, null)));
+        MessagingException wrapped = new MessagingException("failed", new SMTPSendFailedException("DATA", 451, "451 Try again later", null, null, null, null));
+        assertEquals(451, SendRateLimiter.getReturnCode(wrapped));
+        assertEquals(-1, SendRateLimiter.getReturnCode(new MessagingException("failed")));
+    }
+}
@@ -73,4 +73,18 @@ public class TransportProviderTest {
             fail("No provider found for the smtps+smime protocol");
         }
     }
+
+    @Test
+    @DisplayName("Test smtp+smime+nio protocol returns proper transport")
+    public void testSmtpNioSmimeProtocolTransport() throws NoSuchProviderException {
+        try {
+            Session mailSession = Session.getInstance(new Properties());
+
+            Transport mailTransport = mailSession.getTransport("smtp+smime+nio");
+
+            assertTrue(mailTransport instanceof SMimeNioSMTPTransport, "The mail transport for the smtp+smime+nio protocol is not correct");
+        } catch (NoSuchProviderException e) {
+            fail("No provider found for the smtp+smime+nio protocol");
+        }
+    }
 }